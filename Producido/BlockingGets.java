@@ -0,0 +1,134 @@
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Runs the blocking get() calls behind Trader.getAsync()'s default
+ * implementation.  Each call waits on a daemon thread of a pool kept for
+ * the purpose, rather than tying up the common fork-join pool, which a few
+ * hundred waiting orders exhaust.
+ * <p>
+ * Cancelling a returned future interrupts its get() and, if that get()
+ * turns out to have filled the order before the interrupt arrived, fails
+ * instead: cancel() returns true only if nothing was taken from the
+ * trader.  cancelAll() cancels every call still waiting, so that no thread
+ * is left blocked once a run is over.
+ */
+public class BlockingGets {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Runs the calls, one thread each. */
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "BlockingGet");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Calls not yet finished. */
+    private static final Set<Call> unfinished = ConcurrentHashMap.newKeySet();
+
+    /** Starts "trader.get(order)" on a thread of the pool.
+     * @param trader the trader.
+     * @param order the number of bushels needed of each type of grain.
+     * @return a future completed with order when it has been filled.
+     */
+    static CompletableFuture<Order> getAsync(Trader trader, Order order) {
+        Call c = new Call(trader, order);
+        unfinished.add(c);
+        pool.execute(c);
+        return c;
+    } // getAsync(Trader,Order)
+
+    /** Cancels every call still waiting, waiting for each to give up. */
+    public static void cancelAll() {
+        for (Call c : unfinished) {
+            c.cancel(true);
+        }
+    } // cancelAll()
+
+    /** One get() call and its future. */
+    private static class Call extends CompletableFuture<Order>
+            implements Runnable {
+        private final Trader trader;
+        private final Order order;
+
+        /** Whether run() has begun, and the thread in get(), or null once
+         * get() has returned; guarded by this.
+         */
+        private boolean started;
+        private Thread runner;
+
+        /** Counted down once the future has been completed or cancelled by
+         * run().
+         */
+        private final CountDownLatch settled = new CountDownLatch(1);
+
+        Call(Trader trader, Order order) {
+            this.trader = trader;
+            this.order = order;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    unfinished.remove(this);
+                    return;
+                }
+                started = true;
+                runner = Thread.currentThread();
+            }
+            boolean filled = false;
+            try {
+                trader.get(order);
+                filled = true;
+            } catch (InterruptedException e) {
+                // cancelled
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                Thread.interrupted();
+                unfinished.remove(this);
+            }
+            if (filled) {
+                super.complete(order);
+            } else {
+                super.cancel(false);
+            }
+            settled.countDown();
+        }
+
+        /** Cancels the call unless its order has already been filled.
+         * @param mayInterruptIfRunning ignored: a get() under way is always
+         *        interrupted.
+         * @return true if the order was not, and now will not be, filled.
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (!started) {
+                    unfinished.remove(this);
+                    return super.cancel(false);
+                }
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    settled.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return isCancelled();
+        }
+    } // Call
+} // BlockingGets
@@ -0,0 +1,123 @@
+import java.util.*;
+import static java.lang.System.*;
+
+
+/** Measures the cost of OrderBook's matching as the number of resting
+ * orders grows.
+ * <p>
+ * For each book depth, one thread replays a fixed cycle of random bids and
+ * asks, priced a few ticks either side of the middle so that about half of
+ * them trade on arrival.  Before each one, the order posted "depth"
+ * messages earlier is cancelled if it is still resting, which keeps the
+ * book at most that deep.  Results are the mean time per message (one
+ * post and one cancel) and per trade, after a warm-up long enough for the
+ * JIT to compile the matching loop.
+ */
+public class BookBench {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Number of distinct messages cycled through. */
+    private static final int MESSAGES = 4096;
+
+    /** Number of price levels. */
+    private static final int LEVELS = 64;
+
+    /** Prints a usage message and terminates. */
+    private static void usage() {
+        err.println("usage: BookBench [-n depth,...][-d millis][-s seed]");
+        exit(1);
+    } // usage()
+
+    /** Times the book at one depth and prints a line.
+     * @param depth the most orders resting at once.
+     * @param millis how long to measure, after an equal warm-up.
+     * @param seed the random seed.
+     */
+    private static void runOne(int depth, long millis, long seed) {
+        SplittableRandom rand = new SplittableRandom(seed);
+        boolean[] isBid = new boolean[MESSAGES];
+        int[] price = new int[MESSAGES];
+        int[] qty = new int[MESSAGES];
+        for (int k = 0; k < MESSAGES; k++) {
+            isBid[k] = rand.nextBoolean();
+            price[k] = LEVELS / 2 - 4 + rand.nextInt(9);
+            qty[k] = 1 + rand.nextInt(10);
+        }
+        final long[] volume = new long[1];
+        OrderBook book = new OrderBook(LEVELS, depth,
+            (buyer, seller, p, n) -> volume[0] += n);
+        int[] ids = new int[depth];
+        int[] owners = new int[depth];
+        Arrays.fill(ids, -1);
+
+        long messages = 0;
+        long trades = 0;
+        long start = 0;
+        long warmEnd = nanoTime() + millis * 1000000L;
+        boolean warm = false;
+        int who = 0;
+        int slot = 0;
+        for (int k = 0; ; k = (k + 1) % MESSAGES) {
+            if ((k & 15) == 0) {
+                long now = nanoTime();
+                if (!warm && now >= warmEnd) {
+                    warm = true;
+                    messages = 0;
+                    trades = book.trades();
+                    start = now;
+                } else if (warm && now - start >= millis * 1000000L) {
+                    break;
+                }
+            }
+            book.cancel(ids[slot], owners[slot]);
+            ids[slot] = isBid[k] ? book.bid(who, price[k], qty[k])
+                : book.ask(who, price[k], qty[k]);
+            owners[slot] = who++;
+            slot = slot + 1 == depth ? 0 : slot + 1;
+            messages++;
+        }
+        long elapsed = nanoTime() - start;
+        trades = book.trades() - trades;
+        out.printf("%9d %12.1f %12.1f %12.2f%n", depth,
+            (double) elapsed / messages, (double) elapsed / Math.max(1, trades),
+            (double) trades / messages);
+    } // runOne(int,long,long)
+
+    /** Runs the benchmark for each depth.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) {
+        int[] depths = { 16, 256, 4096, 65536 };
+        long millis = 1000;
+        long seed = 0;
+
+        GetOpt options = new GetOpt("BookBench", args, "n:d:s:");
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'n':
+                depths = TraderBench.intList(options.optarg);
+                break;
+            case 'd':
+                millis = Long.parseLong(options.optarg);
+                break;
+            case 's':
+                seed = Long.parseLong(options.optarg);
+                break;
+            }
+        }
+        if (options.optind != args.length) {
+            usage();
+        }
+
+        out.printf("%9s %12s %12s %12s%n",
+            "depth", "ns/message", "ns/trade", "trades/msg");
+        for (int depth : depths) {
+            runOne(depth, millis, seed);
+        }
+    } // main(String[])
+} // BookBench
@@ -0,0 +1,282 @@
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A market in which grain changes hands through an OrderBook per grain
+ * instead of one trader filling a whole order (P2 --exchange=book).
+ * <p>
+ * Each grain's specialist is a seller: whatever the supplier delivers to
+ * it is offered as one ask in that grain's book, priced lower the more
+ * unsold grain it holds (see askPrice()).  A brewer's get() posts one bid
+ * for every grain in its order, all at one limit price drawn at random,
+ * and returns once every bid has been filled, at whatever prices.  A bid
+ * that crosses the ask trades at once; otherwise it rests until a
+ * delivery brings the ask down to it.
+ * <p>
+ * Each book has its own lock, held only while posting, cancelling and
+ * matching, so the work per trade is a few array updates.  A waiting
+ * brewer holds a slot, indexing primitive arrays of what it is still owed
+ * and what it has received, and is woken with LockSupport.unpark() once it
+ * is owed nothing.  Traders() wraps the sellers as Traders, so that the
+ * supplier, brewers and reports of P2 need not change.
+ */
+public class BookExchange {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Number of price levels in each book. */
+    public static final int LEVELS = 64;
+
+    /** Unsold bushels that take one tick off a seller's price. */
+    private static final int GLUT = 4;
+
+    private static final Grain[] GRAINS = Grain.values();
+
+    /** The books and their locks, by grain. */
+    private final OrderBook[] books = new OrderBook[GRAINS.length];
+    private final ReentrantLock[] locks = new ReentrantLock[GRAINS.length];
+
+    /** Number of slots for waiting brewers. */
+    private final int slots;
+
+    /** Bushels each slot's request is still owed, over all grains. */
+    private final AtomicIntegerArray owed;
+
+    /** received[slot * GRAINS.length + g] is what the slot's request has
+     * received of grain g; updated under book g's lock.
+     */
+    private final int[] received;
+
+    /** bids[slot * GRAINS.length + g] is the id of the slot's bid in book
+     * g; updated under book g's lock.
+     */
+    private final int[] bids;
+
+    /** The thread waiting in each slot. */
+    private final Thread[] waiters;
+
+    /** Free slots, a stack guarded by this exchange's monitor. */
+    private final int[] freeSlots;
+    private int freeCount;
+
+    /** Each seller's unsold bushels, and the id of its ask. */
+    private final AtomicIntegerArray unsold = new AtomicIntegerArray(GRAINS.length);
+    private final int[] asks = new int[GRAINS.length];
+
+    /** The sellers' owner ids in the books: slots + g. */
+    private final int sellerBase;
+
+    /** Creates an exchange.
+     * @param slots the most brewers that may wait at once.
+     */
+    public BookExchange(int slots) {
+        this.slots = slots;
+        owed = new AtomicIntegerArray(slots);
+        received = new int[slots * GRAINS.length];
+        bids = new int[slots * GRAINS.length];
+        waiters = new Thread[slots];
+        freeSlots = new int[slots];
+        for (int s = 0; s < slots; s++) {
+            freeSlots[s] = slots - 1 - s;
+        }
+        freeCount = slots;
+        sellerBase = slots;
+        for (Grain g : GRAINS) {
+            final int k = g.ordinal();
+            // one resting bid per slot, and the seller's ask
+            books[k] = new OrderBook(LEVELS, slots + 1,
+                (buyer, seller, price, qty) -> filled(k, buyer, qty));
+            locks[k] = new ReentrantLock();
+            asks[k] = -1;
+        }
+    } // BookExchange(int)
+
+    /** Returns traders fronting this exchange, one for each grain.
+     * @return traders.get(g) sells grain g.
+     */
+    public EnumMap<Grain, Trader> traders() {
+        EnumMap<Grain, Trader> t = new EnumMap<Grain, Trader>(Grain.class);
+        for (Grain g : GRAINS) {
+            t.put(g, new Seller(g));
+        }
+        return t;
+    } // traders()
+
+    /** Returns the number of trades made in all the books.
+     * @return the count.
+     */
+    public long trades() {
+        long n = 0;
+        for (int k = 0; k < GRAINS.length; k++) {
+            locks[k].lock();
+            try {
+                n += books[k].trades();
+            } finally {
+                locks[k].unlock();
+            }
+        }
+        return n;
+    } // trades()
+
+    /** The price a seller asks when it has "stock" bushels unsold. */
+    private static int askPrice(int stock) {
+        return Math.max(0, LEVELS / 2 - stock / GLUT);
+    } // askPrice(int)
+
+    /** Records one trade in book k.  Called under book k's lock. */
+    private void filled(int k, int buyer, int qty) {
+        unsold.addAndGet(k, -qty);
+        received[buyer * GRAINS.length + k] += qty;
+        if (owed.addAndGet(buyer, -qty) == 0) {
+            LockSupport.unpark(waiters[buyer]);
+        }
+    } // filled(int,int,int)
+
+    /** Adds "amt" bushels to seller k's ask, reposting it at the price its
+     * new stock commands.
+     */
+    private void offer(int k, int amt) {
+        locks[k].lock();
+        try {
+            int stock = books[k].cancel(asks[k], sellerBase + k) + amt;
+            unsold.set(k, stock);
+            asks[k] = books[k].ask(sellerBase + k, askPrice(stock), stock);
+        } finally {
+            locks[k].unlock();
+        }
+    } // offer(int,int)
+
+    /** Takes a free slot. */
+    private synchronized int acquire() {
+        if (freeCount == 0) {
+            throw new IllegalStateException("more than " + slots
+                + " brewers waiting");
+        }
+        return freeSlots[--freeCount];
+    } // acquire()
+
+    /** Returns a slot. */
+    private synchronized void release(int s) {
+        freeSlots[freeCount++] = s;
+    } // release(int)
+
+    /** Buys "order", posting a bid for each grain at "limit" and waiting
+     * until every one has been filled.  If interrupted, withdraws the bids
+     * and hands what they had received back to the sellers.
+     * @param order the number of bushels needed of each grain.
+     * @param limit the most to pay per bushel.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void buy(Order order, int limit) throws InterruptedException {
+        int s = acquire();
+        int base = s * GRAINS.length;
+        waiters[s] = Thread.currentThread();
+        owed.set(s, order.total());
+        try {
+            for (int k = 0; k < GRAINS.length; k++) {
+                int n = order.get(GRAINS[k]);
+                if (n == 0) {
+                    continue;
+                }
+                locks[k].lock();
+                try {
+                    received[base + k] = 0;
+                    bids[base + k] = books[k].bid(s, limit, n);
+                } finally {
+                    locks[k].unlock();
+                }
+            }
+            while (owed.get(s) > 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    withdraw(s, order);
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiters[s] = null;
+            release(s);
+        }
+    } // buy(Order,int)
+
+    /** Withdraws slot s's bids and gives back what they received. */
+    private void withdraw(int s, Order order) {
+        int base = s * GRAINS.length;
+        for (int k = 0; k < GRAINS.length; k++) {
+            if (order.get(GRAINS[k]) == 0) {
+                continue;
+            }
+            int back;
+            locks[k].lock();
+            try {
+                books[k].cancel(bids[base + k], s);
+                back = received[base + k];
+                received[base + k] = 0;
+            } finally {
+                locks[k].unlock();
+            }
+            if (back > 0) {
+                offer(k, back);
+            }
+        }
+    } // withdraw(int,Order)
+
+    /** The specialist in one grain, seen as a Trader.  Its get() buys a
+     * whole order from the exchange at a random limit price; it neither
+     * swaps nor holds anything but its unsold specialty.
+     */
+    private class Seller implements Trader {
+        private final Grain primary;
+
+        Seller(Grain primary) {
+            this.primary = primary;
+        }
+
+        /** Reports this seller's unsold stock.
+         * @return its unsold bushels of its specialty.
+         */
+        public Order getAmountOnHand() {
+            return snapshot(new Order());
+        }
+
+        /** Copies this seller's unsold stock into "into".
+         * @param into the Order to fill in.
+         * @return into.
+         */
+        public Order snapshot(Order into) {
+            into.clear();
+            into.set(primary, unsold.get(primary.ordinal()));
+            return into;
+        }
+
+        /** Buys an order at a limit price drawn with P2.randInt().
+         * @param order the number of bushels needed of each type of grain.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public void get(Order order) throws InterruptedException {
+            buy(order, P2.randInt(LEVELS));
+        }
+
+        /** Refuses: a seller holds nothing but its specialty and trades
+         * only through the books, so it has nothing to swap with (see
+         * Trader.swap()).  SwapNegotiator never picks a seller, so reaching
+         * this is a mistake in the caller.
+         * @param what the grain offered.
+         * @param amt the number of bushels.
+         * @throws IllegalStateException always.
+         */
+        public void swap(Grain what, int amt) {
+            throw new IllegalStateException(
+                "the " + primary + " seller trades through the exchange"
+                + " and does not swap");
+        }
+
+        /** Offers a delivery in this seller's book.
+         * @param amt the number of bushels delivered.
+         */
+        public void deliver(int amt) {
+            offer(primary.ordinal(), amt);
+        }
+    } // Seller
+} // BookExchange
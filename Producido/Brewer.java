@@ -1,4 +1,14 @@
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
 public class Brewer implements Runnable {
 	/** Source version number. */
 	private static final int VERSION = 1;
@@ -8,6 +18,54 @@ public class Brewer implements Runnable {
     /** Total consumed thus far. */
     private Order consumed = new Order();
 
+    /** Lets getConsumption(Order) read consumed without the monitor. */
+    private final SeqLock seq = new SeqLock();
+
+    /** Time from each request to its being filled, in nanoseconds. */
+    private final Histogram waits = new Histogram();
+
+    /** This brewer's own random stream. */
+    private final SplittableRandom rand = P2.newRandom();
+
+    /** The trader this brewer is waiting for, and the order it is waiting
+     * to have filled, or null while it is thinking or consuming.  Set
+     * order first and cleared trader first, so a reader that sees a trader
+     * also sees its order.
+     */
+    private volatile Trader waitingAt;
+    private volatile Order waitingFor;
+
+    /** The market this brewer buys from. */
+    private final Market market;
+
+    // Split fulfilment (see getSplit()):
+
+    /** The parts of the current order, one for each grain ordered. */
+    private final Order[] parts = new Order[Grain.values().length];
+
+    /** from[i] is the specialty of the trader parts[i] was sent to. */
+    private final Grain[] from = new Grain[parts.length];
+
+    /** The futures of the parts. */
+    private final List<CompletableFuture<Order>> pending =
+        new ArrayList<CompletableFuture<Order>>(parts.length);
+
+    /** Number of parts of the current order. */
+    private int partCount;
+
+    /** Scratch space for trader snapshots. */
+    private final Order onHand = new Order();
+
+    /** Creates a new Brewer.
+     * @param market the market to buy from.
+     */
+    public Brewer(Market market) {
+        this.market = market;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new Order();
+        }
+    } // Brewer(Market)
+
     /** Reports on the total amount consumed thus far.
      * @return the amount consumed thus far.
      */
@@ -15,45 +73,312 @@ public class Brewer implements Runnable {
         return consumed;
     } // getConsumption(int[])
 
+    /** Copies the total consumed thus far into "into" without blocking
+     * consume() or allocating.
+     * @param into the Order to fill in.
+     * @return into.
+     */
+    public Order getConsumption(Order into) {
+        long v;
+        do {
+            v = seq.readBegin();
+            into.setAll(consumed);
+        } while (!seq.validate(v));
+        return into;
+    } // getConsumption(Order)
+
+    /** Returns the trader this brewer is waiting for, if any.
+     * @return the trader, or null if this brewer is not waiting.
+     */
+    public Trader waitingAt() {
+        return waitingAt;
+    } // waitingAt()
+
+    /** Returns the order this brewer is waiting to have filled.  Only
+     * meaningful after waitingAt() has returned non-null.
+     * @return the order.
+     */
+    public Order waitingFor() {
+        return waitingFor;
+    } // waitingFor()
+
+    /** Notes that this brewer is about to wait for "order" at "t". */
+    private void waiting(Trader t, Order order) {
+        waitingFor = order;
+        waitingAt = t;
+    } // waiting(Trader,Order)
+
+    /** Notes that this brewer is no longer waiting. */
+    private void done() {
+        waitingAt = null;
+        waitingFor = null;
+    } // done()
+
+    /** Reports how long this brewer's requests took to be filled.
+     * @return a histogram of request latencies in nanoseconds.
+     */
+    public Histogram getWaitTimes() {
+        return waits;
+    } // getWaitTimes()
+
     /** Consumes the indicated amounts of resources.
      * @param result a vector of amounts, one for each grain.
      */
     private synchronized void consume(Order amount) {
+        seq.beginWrite();
+        consumed.addAll(amount);
+        seq.endWrite();
+    } // consume(Order)
+
+    /** Breaks "order" into one part for each grain it asks for and sends
+     * every part at once, each to a trader that has that grain in stock
+     * (see Market.holder()), so that no one trader has to swap for the
+     * whole order.  Sets partCount, parts, from and pending.
+     * @param order the order.
+     */
+    private void sendParts(Order order) {
+        partCount = 0;
+        pending.clear();
         for (Grain g : Grain.values()) {
-            consumed.change(g, amount.get(g));
+            int n = order.get(g);
+            if (n == 0) {
+                continue;
+            }
+            Order part = parts[partCount];
+            part.clear();
+            part.set(g, n);
+            Grain h = market.holder(g, n, onHand);
+            from[partCount] = h;
+            pending.add(market.specialist(h).getAsync(part));
+            partCount++;
         }
-    } // consume(Order)
+    } // sendParts(Order)
+
+    /** Fills "order" in parts, one for each grain, sent to different
+     * traders in parallel.  The order is committed as a whole: it counts
+     * as filled, and is consumed, only once every part has been (see
+     * abandonParts() for a brewer stopped half way).
+     * @param order the order.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void getSplit(Order order) throws InterruptedException {
+        sendParts(order);
+        try {
+            for (int i = 0; i < partCount; i++) {
+                waiting(market.specialist(from[i]), parts[i]);
+                pending.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            if (abandonParts()) {
+                throw e;
+            }
+            // every part arrived anyway; stop at the next sleep
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("part not filled", e.getCause());
+        }
+    } // getSplit(Order)
+
+    /** Gives up on the current split order: cancels the parts still
+     * waiting, and hands the ones already filled back to their traders
+     * (Trader.restock()), so that the grain is neither lost nor consumed
+     * for an order that never completed.  A part its trader will not take
+     * back is consumed instead, so that no grain goes missing.
+     * @return false if no part was still waiting, so the order is filled
+     *         after all.
+     */
+    private boolean abandonParts() {
+        boolean waiting = false;
+        for (int i = 0; i < partCount; i++) {
+            waiting |= pending.get(i).cancel(false);
+        }
+        if (waiting) {
+            for (int i = 0; i < partCount; i++) {
+                if (!pending.get(i).isCancelled()
+                        && !market.specialist(from[i]).restock(parts[i])) {
+                    consume(parts[i]);
+                    P2.consumed(from[i], parts[i]);
+                }
+            }
+        }
+        return waiting;
+    } // abandonParts()
+
+    /** Notes that the parts of an order, filled by getSplit() or
+     * getSplitAsync(), have been consumed.
+     */
+    private void consumedParts() {
+        for (int i = 0; i < partCount; i++) {
+            P2.consumed(from[i], parts[i]);
+        }
+    } // consumedParts()
+
+    /** Like getSplit(), but without blocking.
+     * @param order the order.
+     * @return a future completed with order once every part is filled.
+     */
+    private CompletableFuture<Order> getSplitAsync(final Order order) {
+        sendParts(order);
+        CompletableFuture<Order> all = CompletableFuture.completedFuture(order);
+        for (int i = 0; i < partCount; i++) {
+            final int k = i;
+            all = all.thenCompose(o -> {
+                waiting(market.specialist(from[k]), parts[k]);
+                return pending.get(k);
+            });
+        }
+        return all.thenApply(o -> order);
+    } // getSplitAsync(Order)
+
+    /** Commits a request event if the recording wants it.
+     * @param event the event, begun when the order was placed.
+     * @param g the grain whose trader was asked.
+     * @param order the order, now filled.
+     */
+    private static void commit(TraderEvents.Request event, Grain g,
+            Order order) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.trader = g.name();
+            event.bushels = order.total();
+            event.split = P2.splitOrders();
+            event.commit();
+        }
+    } // commit(TraderEvents.Request,Grain,Order)
 
     /** Main loop.
      * Repeatedly generates random orders to random brokers.
      */
     public void run() {
+        P2.setRandom(rand);
         Order order = new Order();
         for (;;) {
             try {
-                Thread.sleep(P2.randInt(500));
+                Thread.sleep(P2.workload().think(rand));
             } catch (InterruptedException e) {
-                P2.setVerbose(true);
-                P2.debug("interrupted while sleeping");
+                P2.trace(EventLog.SLEEP_INTERRUPTED, null, 0);
                 return;
             }
 
             for (Grain g : Grain.values()) {
-                order.set(g, P2.randInt(1,10));
+                order.set(g, P2.workload().orderSize(rand));
             }
-            Grain g = Grain.randChoice();
-            P2.debug("requesting %s from the %s trader", order, g);
+            Grain g = P2.workload().grain(rand);
+            P2.trace(EventLog.REQUEST, g, order);
+            TraderEvents.Request event = new TraderEvents.Request();
+            event.begin();
+            long start = System.nanoTime();
             try {
-                P2.specialist(g).get(order);
+                if (P2.splitOrders()) {
+                    getSplit(order);
+                } else {
+                    Trader t = market.specialist(g);
+                    waiting(t, order);
+                    t.get(order);
+                }
             } catch (InterruptedException e) {
-                P2.setVerbose(true);
-                P2.debug("interrupted while requesting%n"
-                        + "     %s from the %s trader",
-                    order, g);
+                P2.trace(EventLog.REQUEST_INTERRUPTED, g, order);
                 return;
             }
-            P2.debug("got %s from the %s trader", order, g);
+            waits.record(System.nanoTime() - start);
+            done();
+            commit(event, g, order);
+            P2.trace(EventLog.GOT, g, order);
             consume(order);
+            if (P2.splitOrders()) {
+                consumedParts();
+            } else {
+                P2.consumed(g, order);
+            }
         }
     } // run()
+
+    /** Runs the same loop as run(), but without dedicating a thread to this
+     * brewer: each sleep is a task scheduled on "executor" and each request
+     * is made with Trader.getAsync().  The loop ends once the executor is
+     * shut down.
+     * @param executor the executor that runs this brewer's steps.
+     */
+    public void start(ScheduledExecutorService executor) {
+        sleep(executor, new Order());
+    } // start(ScheduledExecutorService)
+
+    /** Abandons the split order this brewer was waiting for, if any, once
+     * the executor given to start() has terminated.
+     */
+    public void stop() {
+        abandonParts();
+    } // stop()
+
+    /** Schedules the next request after a random delay.  May be called from
+     * whichever thread filled the previous order, so draws directly from this
+     * brewer's stream rather than through P2.randInt().
+     * @param executor the executor that runs this brewer's steps.
+     * @param order the order object to reuse for the next request.
+     */
+    private void sleep(final ScheduledExecutorService executor,
+            final Order order) {
+        try {
+            executor.schedule(() -> request(executor, order),
+                P2.workload().think(rand), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    } // sleep(ScheduledExecutorService,Order)
+
+    /** Makes one asynchronous request and arranges for the order to be
+     * consumed, and the next request scheduled, once it is filled.
+     * @param executor the executor that runs this brewer's steps.
+     * @param order the order object to fill in.
+     */
+    private void request(final ScheduledExecutorService executor,
+            final Order order) {
+        P2.setRandom(rand);
+        for (Grain g : Grain.values()) {
+            order.set(g, P2.workload().orderSize(rand));
+        }
+        final Grain g = P2.workload().grain(rand);
+        P2.trace(EventLog.REQUEST, g, order);
+        final TraderEvents.Request event = new TraderEvents.Request();
+        event.begin();
+        final long start = System.nanoTime();
+        final boolean split = P2.splitOrders();
+        CompletableFuture<Order> f;
+        if (split) {
+            f = getSplitAsync(order);
+        } else {
+            Trader t = market.specialist(g);
+            waiting(t, order);
+            f = t.getAsync(order);
+        }
+        f.thenAccept(o -> execute(executor, () -> {
+            waits.record(System.nanoTime() - start);
+            done();
+            commit(event, g, o);
+            P2.trace(EventLog.GOT, g, o);
+            consume(o);
+            if (split) {
+                consumedParts();
+            } else {
+                P2.consumed(g, o);
+            }
+            sleep(executor, o);
+        }));
+    } // request(ScheduledExecutorService,Order)
+
+    /** Runs "task" on "executor", so that the thread that filled an order,
+     * often a supplier's, does not go on to consume it.  Once the executor
+     * has been shut down the task runs on the calling thread instead, since
+     * an order that has been filled must still be consumed.
+     * @param executor the executor that runs this brewer's steps.
+     * @param task the step to run.
+     */
+    private static void execute(ScheduledExecutorService executor,
+            Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    } // execute(ScheduledExecutorService,Runnable)
 } // Brewer
@@ -0,0 +1,276 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import static java.lang.System.*;
+
+/** Checks, while a run is in progress, that no grain is created or lost.
+ * <p>
+ * The supplier, the traders and the brewers report every movement of
+ * grain to striped per-grain counters (LongAdder), which stay uncontended
+ * however many threads update them.  Grain is always in exactly one place:
+ * produced, held by a trader, in transit (handed to a brewer but not yet
+ * consumed) or consumed, so for every grain
+ * <pre>
+ *     produced - held - transit - consumed == 0
+ * </pre>
+ * A background sampler evaluates this identity periodically.  Moving grain
+ * takes more than one counter update, sometimes in different threads (a
+ * swap sets grain aside, releases the trader's lock and puts back what it
+ * did not use), so each movement is bracketed by begin() and end(), and a
+ * sample only counts if it read the counters while no movement was under
+ * way: a stable cut, at which any nonzero imbalance is a real drift.  A
+ * sample that finds no stable cut in CUT_TRIES attempts is skipped.  Each
+ * sample also audits every trader: its held counters, which it updates
+ * under its lock, must equal its actual inventory exactly.
+ * <p>
+ * Only TraderImpls report to the monitor, so it cannot watch a market of
+ * LockFreeTraderImpls or a BookExchange.
+ */
+public class ConservationMonitor {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Number of attempts a sample makes to find a stable cut. */
+    private static final int CUT_TRIES = 100;
+
+    private static final Grain[] GRAINS = Grain.values();
+
+    /** Grain delivered by the supplier. */
+    private final LongAdder[] produced = counters();
+
+    /** Grain taken from traders by brewers but not yet consumed. */
+    private final LongAdder[] transit = counters();
+
+    /** Grain consumed by brewers. */
+    private final LongAdder[] consumed = counters();
+
+    /** Grain held by each registered trader. */
+    private final Map<TraderImpl, LongAdder[]> held =
+        Collections.synchronizedMap(new LinkedHashMap<TraderImpl, LongAdder[]>());
+
+    /** Number of movements begun and ended; they only ever grow, and are
+     * equal while no movement is under way.
+     */
+    private final LongAdder begun = new LongAdder();
+    private final LongAdder ended = new LongAdder();
+
+    /** Scratch space for the imbalances read by a sample. */
+    private final long[] imbalance = new long[GRAINS.length];
+
+    /** Number of samples taken, skipped for want of a stable cut, and
+     * drifts flagged.
+     */
+    private volatile long samples;
+    private volatile long unstable;
+    private volatile long drifts;
+
+    /** The sampler thread, or null if not started. */
+    private Thread sampler;
+
+    /** Returns a fresh counter for each grain. */
+    private static LongAdder[] counters() {
+        LongAdder[] c = new LongAdder[GRAINS.length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = new LongAdder();
+        }
+        return c;
+    } // counters()
+
+    /** Registers a trader whose holdings are currently "onHand".
+     * @param t the trader.
+     * @param onHand its current inventory.
+     * @return the trader's held counters, which it must update under its
+     *         lock whenever its inventory changes.
+     */
+    LongAdder[] register(TraderImpl t, Order onHand) {
+        LongAdder[] c = counters();
+        for (Grain g : GRAINS) {
+            c[g.ordinal()].add(onHand.get(g));
+        }
+        held.put(t, c);
+        return c;
+    } // register(TraderImpl,Order)
+
+    /** Marks the start of a movement of grain whose counter updates a
+     * sample must not see only some of.
+     */
+    public void begin() {
+        begun.increment();
+    } // begin()
+
+    /** Marks the end of a movement started by begin(). */
+    public void end() {
+        ended.increment();
+    } // end()
+
+    /** Records that the supplier produced n bushels of g.
+     * @param g the grain.
+     * @param n the amount.
+     */
+    public void produced(Grain g, int n) {
+        produced[g.ordinal()].add(n);
+    } // produced(Grain,int)
+
+    /** Records that a trader's holding of g changed by n.
+     * @param heldBy the trader's held counters.
+     * @param g the grain.
+     * @param n the change.
+     */
+    static void moved(LongAdder[] heldBy, Grain g, int n) {
+        if (n != 0) {
+            heldBy[g.ordinal()].add(n);
+        }
+    } // moved(LongAdder[],Grain,int)
+
+    /** Records that a trader handed "o" over to a brewer.
+     * @param heldBy the trader's held counters.
+     * @param o the order.
+     */
+    void taken(LongAdder[] heldBy, Order o) {
+        begin();
+        for (Grain g : GRAINS) {
+            int n = o.get(g);
+            heldBy[g.ordinal()].add(-n);
+            transit[g.ordinal()].add(n);
+        }
+        end();
+    } // taken(LongAdder[],Order)
+
+    /** Records that an order taken from a trader went back into its stock.
+     * @param heldBy the trader's held counters.
+     * @param o the order.
+     */
+    void returned(LongAdder[] heldBy, Order o) {
+        begin();
+        for (Grain g : GRAINS) {
+            int n = o.get(g);
+            heldBy[g.ordinal()].add(n);
+            transit[g.ordinal()].add(-n);
+        }
+        end();
+    } // returned(LongAdder[],Order)
+
+    /** Records that a brewer consumed "o".
+     * @param o the order.
+     */
+    public void consumed(Order o) {
+        begin();
+        for (Grain g : GRAINS) {
+            int n = o.get(g);
+            transit[g.ordinal()].add(-n);
+            consumed[g.ordinal()].add(n);
+        }
+        end();
+    } // consumed(Order)
+
+    /** Returns produced - held - transit - consumed for grain g, read
+     * counter by counter.
+     * @param g the grain.
+     * @return the imbalance.
+     */
+    public long imbalance(Grain g) {
+        int i = g.ordinal();
+        long sum = produced[i].sum() - transit[i].sum() - consumed[i].sum();
+        synchronized (held) {
+            for (LongAdder[] c : held.values()) {
+                sum -= c[i].sum();
+            }
+        }
+        return sum;
+    } // imbalance(Grain)
+
+    /** Reads the imbalance of every grain into "into" at a stable cut.
+     * Reads ended before the counters and begun after them: if the two are
+     * then equal, every movement begun before the counters were read had
+     * ended before they were, so none was under way while they were.
+     * @param into where to put the imbalances, indexed by grain.
+     * @return true if a stable cut was found.
+     */
+    private boolean stableCut(long[] into) {
+        for (int i = 0; i < CUT_TRIES; i++) {
+            long e = ended.sum();
+            for (Grain g : GRAINS) {
+                into[g.ordinal()] = imbalance(g);
+            }
+            if (begun.sum() == e) {
+                return true;
+            }
+            Thread.yield();
+        }
+        return false;
+    } // stableCut(long[])
+
+    /** Takes one sample: audits every trader and checks the identity for
+     * every grain at a stable cut, printing a message for any drift found.
+     * @return true if no drift was flagged.
+     */
+    public boolean sample() {
+        boolean ok = true;
+        TraderImpl[] ts;
+        synchronized (held) {
+            ts = held.keySet().toArray(new TraderImpl[0]);
+        }
+        for (TraderImpl t : ts) {
+            Grain bad = t.audit();
+            if (bad != null) {
+                drifts++;
+                ok = false;
+                err.printf("ConservationMonitor: %s trader holds %d %s but"
+                        + " its counters say %d%n",
+                    t.primary, t.getAmountOnHand().get(bad), bad,
+                    held.get(t)[bad.ordinal()].sum());
+            }
+        }
+        if (stableCut(imbalance)) {
+            for (Grain g : GRAINS) {
+                long d = imbalance[g.ordinal()];
+                if (d != 0) {
+                    drifts++;
+                    ok = false;
+                    err.printf("ConservationMonitor: %d %s unaccounted for%n",
+                        d, g);
+                }
+            }
+        } else {
+            unstable++;
+        }
+        samples++;
+        return ok;
+    } // sample()
+
+    /** Starts sampling every "period" milliseconds on a daemon thread.
+     * @param period the sampling period in milliseconds.
+     */
+    public synchronized void start(final long period) {
+        sampler = new Thread(() -> {
+            try {
+                for (;;) {
+                    Thread.sleep(period);
+                    sample();
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, "ConservationMonitor");
+        sampler.setDaemon(true);
+        sampler.start();
+    } // start(long)
+
+    /** Stops the sampler.
+     * @throws InterruptedException if interrupted while waiting for it.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (sampler != null) {
+            sampler.interrupt();
+            sampler.join();
+            sampler = null;
+        }
+    } // stop()
+
+    /** Returns a one-line summary of the samples taken.
+     * @return the summary.
+     */
+    public String stats() {
+        return String.format("conservation: samples = %d (%d without a"
+            + " stable cut), drifts = %d", samples, unstable, drifts);
+    } // stats()
+} // ConservationMonitor
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** A binary trace of market events.
+ * Any number of threads record fixed-size events into a lock-free ring
+ * buffer, which costs a compare-and-set and a few array stores; a single
+ * background thread drains the buffer and either formats the events as
+ * text or writes them raw to a file.  If producers get a full buffer ahead
+ * of the consumer, events are dropped and counted rather than blocking.
+ * <p>
+ * Each event is WIDTH longs: the recording thread's id, System.nanoTime(),
+ * a word holding the event type (bits 0-7), grain ordinal + 1 (bits 8-15,
+ * 0 for none) and an amount (bits 32-63), and the four amounts of an
+ * Order, 16 bits each in Grain.ordinal() order.
+ * <p>
+ * A raw file, big-endian throughout, starts with a header of three ints:
+ * MAGIC, FORMAT and WIDTH.  The events follow, WIDTH longs each.  close()
+ * ends the file with a record whose first long is END, where a thread id
+ * would be, followed by the number of events dropped, the number of write
+ * errors and the number of threads named; then, for each of those
+ * threads, its id (a long) and its name (writeUTF()).  The names come last
+ * because threads go on starting until the log is closed.  decode(), or
+ * "java EventLog file", prints a raw file as the text format would have.
+ */
+public class EventLog {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Event type: a brewer requested an order. */
+    public static final int REQUEST = 1;
+
+    /** Event type: a brewer's order was filled. */
+    public static final int GOT = 2;
+
+    /** Event type: the supplier delivered grain. */
+    public static final int DELIVER = 3;
+
+    /** Event type: the supplier finished. */
+    public static final int SUPPLIER_DONE = 4;
+
+    /** Event type: a brewer was stopped while thinking. */
+    public static final int SLEEP_INTERRUPTED = 5;
+
+    /** Event type: a brewer was stopped while waiting for an order. */
+    public static final int REQUEST_INTERRUPTED = 6;
+
+    /** Number of longs per event. */
+    public static final int WIDTH = 4;
+
+    /** First int of a raw file: "P2TR". */
+    public static final int MAGIC = 0x50325452;
+
+    /** Version of the raw file format, second int of a raw file. */
+    public static final int FORMAT = 1;
+
+    /** First long of the record that ends a raw file; never a thread id. */
+    public static final long END = -1;
+
+    /** Number of events the buffer holds; a power of two. */
+    private final int capacity;
+
+    /** The events, WIDTH longs each. */
+    private final long[] slots;
+
+    /** published[i] == s + 1 once event number s has been written to slot i. */
+    private final AtomicLongArray published;
+
+    /** Number of the next event to be claimed by a producer. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Number of the next event the consumer will read. */
+    private volatile long tail;
+
+    /** Number of events dropped because the buffer was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    /** Number of writes to the output that failed, and the first failure.
+     * Written by the consumer and then by close(), which joins it first.
+     */
+    private long errors;
+    private IOException failure;
+
+    /** Names of the threads that have recorded events, by thread id. */
+    private final ConcurrentHashMap<Long, String> names =
+        new ConcurrentHashMap<Long, String>();
+
+    /** Whether the current thread's name has been put into names. */
+    private final ThreadLocal<Boolean> named = new ThreadLocal<Boolean>();
+
+    /** Where formatted events go, or null if writing raw. */
+    private final PrintStream text;
+
+    /** Where raw events go, or null if formatting. */
+    private final DataOutputStream raw;
+
+    /** The consumer thread. */
+    private final Thread consumer;
+
+    /** Set by close() to stop the consumer once the buffer is empty. */
+    private volatile boolean closing;
+
+    /** Creates an EventLog that formats events as text on "out".
+     * @param out where to print events.
+     * @param capacity number of events buffered; rounded up to a power of 2.
+     */
+    public EventLog(PrintStream out, int capacity) {
+        this(out, null, capacity);
+    } // EventLog(PrintStream,int)
+
+    /** Creates an EventLog that writes events raw to "out", starting with
+     * the header.
+     * @param out where to write events.
+     * @param capacity number of events buffered; rounded up to a power of 2.
+     * @throws IOException if the header cannot be written.
+     */
+    public EventLog(OutputStream out, int capacity) throws IOException {
+        this(null, header(new DataOutputStream(new BufferedOutputStream(out))),
+            capacity);
+    } // EventLog(OutputStream,int)
+
+    /** Writes the header of a raw file. */
+    private static DataOutputStream header(DataOutputStream raw)
+            throws IOException {
+        raw.writeInt(MAGIC);
+        raw.writeInt(FORMAT);
+        raw.writeInt(WIDTH);
+        return raw;
+    } // header(DataOutputStream)
+
+    private EventLog(PrintStream text, DataOutputStream raw, int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new long[this.capacity * WIDTH];
+        this.published = new AtomicLongArray(this.capacity);
+        this.text = text;
+        this.raw = raw;
+        this.consumer = new Thread(this::drain, "EventLog");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    } // EventLog(PrintStream,DataOutputStream,int)
+
+    /** Records an event carrying an order.
+     * @param type the event type.
+     * @param g the grain (trader) involved, or null.
+     * @param order the amounts involved.
+     */
+    public void record(int type, Grain g, Order order) {
+        long packed = 0;
+        for (Grain c : Grain.values()) {
+            long n = Math.min(Math.max(order.get(c), 0), 0xFFFF);
+            packed |= n << (16 * c.ordinal());
+        }
+        record(type, g, 0, packed);
+    } // record(int,Grain,Order)
+
+    /** Records an event carrying a single amount.
+     * @param type the event type.
+     * @param g the grain involved, or null.
+     * @param amount the amount involved.
+     */
+    public void record(int type, Grain g, int amount) {
+        record(type, g, amount, 0);
+    } // record(int,Grain,int)
+
+    /** Claims a slot and writes one event into it. */
+    private void record(int type, Grain g, int amount, long packed) {
+        Thread self = Thread.currentThread();
+        if (named.get() == null) {
+            names.put(self.getId(), self.getName());
+            named.set(Boolean.TRUE);
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int i = (int) seq & (capacity - 1);
+        int base = i * WIDTH;
+        slots[base] = self.getId();
+        slots[base + 1] = System.nanoTime();
+        slots[base + 2] = type | (g == null ? 0 : g.ordinal() + 1) << 8
+            | (long) amount << 32;
+        slots[base + 3] = packed;
+        published.lazySet(i, seq + 1);
+    } // record(int,Grain,int,long)
+
+    /** Consumer loop: writes out events in order until closed and empty. */
+    private void drain() {
+        long[] event = new long[WIDTH];
+        int idle = 0;
+        for (;;) {
+            long t = tail;
+            int i = (int) t & (capacity - 1);
+            if (published.get(i) == t + 1) {
+                System.arraycopy(slots, i * WIDTH, event, 0, WIDTH);
+                tail = t + 1;
+                write(event);
+                idle = 0;
+            } else if (closing && t == head.get()) {
+                break;
+            } else if (++idle < 100) {
+                Thread.onSpinWait();
+            } else {
+                flush();
+                LockSupport.parkNanos(100000L);
+            }
+        }
+        flush();
+    } // drain()
+
+    /** Writes one event to the output. */
+    private void write(long[] e) {
+        if (raw == null) {
+            format(e, names, text);
+            return;
+        }
+        try {
+            for (long w : e) {
+                raw.writeLong(w);
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    } // write(long[])
+
+    /** Counts a failed write, keeping the first failure for the report. */
+    private void failed(IOException ex) {
+        if (errors++ == 0) {
+            failure = ex;
+        }
+    } // failed(IOException)
+
+    /** Prints one event as text.
+     * @param e the event.
+     * @param names thread names by thread id.
+     * @param text where to print it.
+     */
+    private static void format(long[] e, Map<Long, String> names,
+            PrintStream text) {
+        int type = (int) (e[2] & 0xFF);
+        int gi = (int) (e[2] >>> 8 & 0xFF);
+        Grain g = gi == 0 ? null : Grain.values()[gi - 1];
+        int amount = (int) (e[2] >>> 32);
+        String who = names.getOrDefault(e[0], "Thread-" + e[0]);
+        switch (type) {
+        case REQUEST:
+            text.printf("%s: requesting %s from the %s trader%n",
+                who, unpack(e[3]), g);
+            break;
+        case GOT:
+            text.printf("%s: got %s from the %s trader%n",
+                who, unpack(e[3]), g);
+            break;
+        case DELIVER:
+            text.printf("%s: delivering %d %s of %s to the %s broker%n",
+                who, amount, (amount == 1 ? "bushel" : "bushels"), g, g);
+            break;
+        case SUPPLIER_DONE:
+            text.printf("%s: Supplier shutting down ...%n", who);
+            break;
+        case SLEEP_INTERRUPTED:
+            text.printf("%s: interrupted while sleeping%n", who);
+            break;
+        case REQUEST_INTERRUPTED:
+            text.printf("%s: interrupted while requesting%n"
+                + "     %s from the %s trader%n", who, unpack(e[3]), g);
+            break;
+        default:
+            text.printf("%s: event %d%n", who, type);
+            break;
+        }
+    } // format(long[],Map,PrintStream)
+
+    /** Rebuilds the Order packed into an event. */
+    private static Order unpack(long packed) {
+        Order o = new Order();
+        for (Grain c : Grain.values()) {
+            o.set(c, (int) (packed >>> (16 * c.ordinal()) & 0xFFFF));
+        }
+        return o;
+    } // unpack(long)
+
+    /** Flushes the output. */
+    private void flush() {
+        try {
+            if (raw != null) {
+                raw.flush();
+            } else {
+                text.flush();
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    } // flush()
+
+    /** Returns the number of events dropped because the buffer was full.
+     * @return the number of events dropped.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    } // getDropped()
+
+    /** Returns the number of writes to the output that failed.  Complete
+     * only once close() has returned.
+     * @return the number of failures.
+     */
+    public long getErrors() {
+        return errors;
+    } // getErrors()
+
+    /** Returns the first write to the output that failed.
+     * @return the exception, or null if none failed.
+     */
+    public IOException getFailure() {
+        return failure;
+    } // getFailure()
+
+    /** Writes out every event recorded so far and stops the consumer, then
+     * ends a raw file with the END record and the thread-name table.
+     * Events recorded after close() are dropped.
+     * @throws InterruptedException if interrupted while waiting for the
+     *         consumer to finish.
+     */
+    public void close() throws InterruptedException {
+        closing = true;
+        consumer.join();
+        if (raw != null) {
+            try {
+                raw.writeLong(END);
+                raw.writeLong(dropped.sum());
+                raw.writeLong(errors);
+                raw.writeLong(names.size());
+                for (Map.Entry<Long, String> e : names.entrySet()) {
+                    raw.writeLong(e.getKey());
+                    raw.writeUTF(e.getValue());
+                }
+                raw.close();
+            } catch (IOException ex) {
+                failed(ex);
+            }
+        }
+    } // close()
+
+    /** Prints the events in a raw file as text.  The thread names are at
+     * the end of the file, so the events are read into memory first.
+     * @param in the raw file, positioned at its header.
+     * @param text where to print the events.
+     * @return the number of events printed.
+     * @throws IOException if the file cannot be read, is not a raw trace
+     *         of this FORMAT, or was not closed.
+     */
+    public static long decode(InputStream in, PrintStream text)
+            throws IOException {
+        DataInputStream data =
+            new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not an EventLog trace");
+        }
+        int format = data.readInt();
+        int width = data.readInt();
+        if (format != FORMAT || width != WIDTH) {
+            throw new IOException("unsupported trace format " + format
+                + " with " + width + " longs per event");
+        }
+        ArrayList<long[]> events = new ArrayList<long[]>();
+        long[] e = new long[WIDTH];
+        try {
+            for (;;) {
+                e[0] = data.readLong();
+                if (e[0] == END) {
+                    break;
+                }
+                for (int i = 1; i < WIDTH; i++) {
+                    e[i] = data.readLong();
+                }
+                events.add(e.clone());
+            }
+        } catch (EOFException ex) {
+            throw new IOException("trace ends after " + events.size()
+                + " events without its thread names; was it closed?");
+        }
+        long lost = data.readLong();
+        long failed = data.readLong();
+        Map<Long, String> names = new HashMap<Long, String>();
+        for (long n = data.readLong(); n > 0; n--) {
+            long id = data.readLong();
+            names.put(id, data.readUTF());
+        }
+        for (long[] event : events) {
+            format(event, names, text);
+        }
+        if (lost > 0) {
+            text.printf("Trace dropped %d events%n", lost);
+        }
+        if (failed > 0) {
+            text.printf("Trace had %d write errors%n", failed);
+        }
+        return events.size();
+    } // decode(InputStream,PrintStream)
+
+    /** Prints a raw trace file as text.
+     * @param args the name of the file.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("usage: EventLog trace");
+            System.exit(1);
+        }
+        try (InputStream in = new FileInputStream(args[0])) {
+            decode(in, System.out);
+        } catch (IOException e) {
+            System.err.printf("EventLog: %s: %s%n", args[0], e.getMessage());
+            System.exit(1);
+        }
+    } // main(String[])
+} // EventLog
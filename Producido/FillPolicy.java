@@ -0,0 +1,337 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** Decides which of a trader's pending getAsync() orders are filled first
+ * when stock arrives, and keeps wait-time and starvation counters so that
+ * policies can be compared.
+ * <p>
+ * Every policy's ranking is fixed when an order is queued (AgedFair's
+ * ageing moves all waiting orders alike, so it does not change their
+ * order), so the queue is kept sorted as orders arrive instead of being
+ * re-ranked on each delivery.
+ * Not thread-safe: the owning trader calls every method with its lock held,
+ * except demand().
+ */
+public abstract class FillPolicy {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** An order that waits longer than this (ns) is counted as starved. */
+    private static final long STARVED = 1000000000L;
+
+    /** For AgedFair: waiting this long (ns) is worth one bushel of size. */
+    private static final long AGE_PER_BUSHEL = 10000000L;
+
+    /** Names accepted by forName(). */
+    public static final String[] NAMES =
+        { "fifo", "smallest", "deficit", "aged" };
+
+    /** Orders waiting to be filled, in policy order. */
+    private final TreeSet<PendingOrder> pending = new TreeSet<PendingOrder>(
+        (a, b) -> a.rank != b.rank ? Long.compare(a.rank, b.rank)
+            : Long.compare(a.seq, b.seq));
+
+    /** Sequence number for the next order queued. */
+    private long nextSeq;
+
+    /** Number of waiting orders whose shortOf is each grain.  Written with
+     * the trader's lock held but read without it by demand().
+     */
+    private final AtomicIntegerArray shortOf =
+        new AtomicIntegerArray(Grain.values().length);
+
+    /** Number of orders filled after waiting in the queue. */
+    private long filled;
+
+    /** Total and longest time (ns) filled orders spent in the queue. */
+    private long totalWait;
+    private long maxWait;
+
+    /** Number of times an order was filled ahead of a higher-ranked one. */
+    private long bypasses;
+
+    /** Number of orders, filled or abandoned, that had waited longer than
+     * STARVED when they left the queue.
+     */
+    private long starved;
+
+    /** Returns the policy's priority for p; lower is filled first.
+     * @param p a pending order.
+     * @return the sort key.
+     */
+    protected abstract long rank(PendingOrder p);
+
+    /** Returns the name of this policy.
+     * @return the name, one of NAMES.
+     */
+    public abstract String name();
+
+    /** Queues an order that could not be filled on arrival.
+     * @param order the order.
+     * @param onHand the trader's current inventory.
+     * @return the queued entry.
+     */
+    PendingOrder add(Order order, Order onHand) {
+        PendingOrder p = new PendingOrder(order, nextSeq++, onHand);
+        p.rank = rank(p);
+        pending.add(p);
+        track(p, onHand);
+        return p;
+    } // add(Order,Order)
+
+    /** Sets what p is short of against onHand, and the counts to match. */
+    private void track(PendingOrder p, Order onHand) {
+        untrack(p);
+        p.shortOf = onHand.shortage(p.order);
+        if (p.shortOf != null) {
+            shortOf.incrementAndGet(p.shortOf.ordinal());
+        }
+    } // track(PendingOrder,Order)
+
+    /** Takes p's shortage out of the counts. */
+    private void untrack(PendingOrder p) {
+        if (p.shortOf != null) {
+            shortOf.decrementAndGet(p.shortOf.ordinal());
+            p.shortOf = null;
+        }
+    } // untrack(PendingOrder)
+
+    /** Returns the number of orders waiting.
+     * @return the number of orders waiting.
+     */
+    int size() {
+        return pending.size();
+    } // size()
+
+    /** Returns the number of waiting orders that were first short of g
+     * when last looked at, on arrival or by the latest fill().  May be
+     * called without the trader's lock; the result is then approximate.
+     * @param g the grain.
+     * @return the number of orders.
+     */
+    int demand(Grain g) {
+        return shortOf.get(g.ordinal());
+    } // demand(Grain)
+
+    /** Returns the most of g that any waiting order needs beyond what
+     * onHand holds, counting what it must pay in g for the other grains it
+     * lacks.
+     * @param g the grain swaps are paid with.
+     * @param onHand the trader's current inventory.
+     * @return the largest shortfall, or 0 if no order is short of g.
+     */
+    int shortfall(Grain g, Order onHand) {
+        int most = 0;
+        for (PendingOrder p : pending) {
+            most = Math.max(most, shortfall(p.order, g, onHand));
+        }
+        return most;
+    } // shortfall(Grain,Order)
+
+    /** Returns the most of g that any waiting order lacks, not counting
+     * swaps.
+     * @param g the grain.
+     * @param onHand the trader's current inventory.
+     * @return the largest lack, or 0 if every order's g is covered.
+     */
+    int lacks(Grain g, Order onHand) {
+        int most = 0;
+        for (PendingOrder p : pending) {
+            most = Math.max(most, p.order.get(g) - onHand.get(g));
+        }
+        return most;
+    } // lacks(Grain,Order)
+
+    /** Indicates whether order needs more of g than onHand holds: the
+     * bushels of g it takes itself plus one for each bushel of any other
+     * grain it lacks, which a swap would pay for in g.
+     * @param order the order.
+     * @param g the grain swaps are paid with.
+     * @param onHand the trader's current inventory.
+     * @return true if onHand cannot cover that much g.
+     */
+    static boolean needs(Order order, Grain g, Order onHand) {
+        return needs(order, g, onHand, 0);
+    } // needs(Order,Grain,Order)
+
+    /** Like needs(Order,Grain,Order), but counts "extra" more bushels of
+     * g as held, such as those set aside for swaps under way.
+     * @param order the order.
+     * @param g the grain swaps are paid with.
+     * @param onHand the trader's current inventory.
+     * @param extra bushels of g held outside onHand.
+     * @return true if onHand and extra cannot cover that much g.
+     */
+    static boolean needs(Order order, Grain g, Order onHand, int extra) {
+        return shortfall(order, g, onHand) > extra;
+    } // needs(Order,Grain,Order,int)
+
+    /** Returns how many more bushels of g order needs than onHand holds,
+     * reckoned as in needs(Order,Grain,Order).
+     * @param order the order.
+     * @param g the grain swaps are paid with.
+     * @param onHand the trader's current inventory.
+     * @return the shortfall, or 0 if onHand covers it.
+     */
+    static int shortfall(Order order, Grain g, Order onHand) {
+        int need = order.get(g);
+        for (Grain h : Grain.values()) {
+            if (h != g) {
+                need += Math.max(0, order.get(h) - onHand.get(h));
+            }
+        }
+        return Math.max(0, need - onHand.get(g));
+    } // shortfall(Order,Grain,Order)
+
+    /** Returns the order ranked first.
+     * @return the order, or null if none are waiting.
+     */
+    PendingOrder head() {
+        return pending.isEmpty() ? null : pending.first();
+    } // head()
+
+    /** Fills as many pending orders from onHand as it covers, in policy
+     * order, and drops any whose future has already been cancelled.  What
+     * the orders left waiting are short of is brought up to date.  Each
+     * subtraction is a write of its own under seq, so that readers of
+     * onHand are not held off for the whole scan.
+     * @param onHand the trader's inventory; filled orders are subtracted.
+     * @param seq the trader's sequence lock for onHand.
+     * @return the orders filled, or null if there were none.
+     */
+    ArrayList<PendingOrder> fill(Order onHand, SeqLock seq) {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        ArrayList<PendingOrder> result = null;
+        boolean skipped = false;
+        for (Iterator<PendingOrder> it = pending.iterator(); it.hasNext(); ) {
+            PendingOrder p = it.next();
+            if (p.future.isDone()) {
+                it.remove();
+                removed(p, now);
+            } else if (onHand.covers(p.order)) {
+                seq.beginWrite();
+                onHand.subtractIfCovered(p.order);
+                seq.endWrite();
+                it.remove();
+                removed(p, now);
+                if (result == null) {
+                    result = new ArrayList<PendingOrder>();
+                }
+                result.add(p);
+                long wait = now - p.queuedAt;
+                filled++;
+                totalWait += wait;
+                maxWait = Math.max(maxWait, wait);
+                if (skipped) {
+                    bypasses++;
+                }
+            } else {
+                skipped = true;
+                track(p, onHand);
+            }
+        }
+        return result;
+    } // fill(Order,SeqLock)
+
+    /** Updates the demand and starvation counts for an order leaving the
+     * queue.
+     */
+    private void removed(PendingOrder p, long now) {
+        Grain last = p.shortOf;
+        untrack(p);
+        p.shortOf = last;
+        if (now - p.queuedAt > STARVED) {
+            starved++;
+        }
+    } // removed(PendingOrder,long)
+
+    /** Returns a one-line summary of this policy's counters.  Starved
+     * orders include those still waiting after STARVED.
+     * @return the summary.
+     */
+    public String stats() {
+        long now = System.nanoTime();
+        long stuck = 0;
+        for (PendingOrder p : pending) {
+            if (now - p.queuedAt > STARVED && !p.future.isDone()) {
+                stuck++;
+            }
+        }
+        return String.format(
+            "%s: filled = %d, waiting = %d, mean wait = %.3f ms,"
+                + " max wait = %.3f ms, bypasses = %d, starved = %d"
+                + " (%d still waiting)",
+            name(), filled, pending.size(),
+            filled == 0 ? 0.0 : totalWait / 1e6 / filled, maxWait / 1e6,
+            bypasses, starved + stuck, stuck);
+    } // stats()
+
+    /** Creates a policy by name.
+     * @param name one of NAMES.
+     * @return a new policy.
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    public static FillPolicy forName(String name) {
+        switch (name) {
+        case "fifo":
+            return new Fifo();
+        case "smallest":
+            return new SmallestFirst();
+        case "deficit":
+            return new LargestDeficitFirst();
+        case "aged":
+            return new AgedFair();
+        default:
+            throw new IllegalArgumentException("unknown fill policy " + name);
+        }
+    } // forName(String)
+
+    /** Oldest order first. */
+    static class Fifo extends FillPolicy {
+        protected long rank(PendingOrder p) {
+            return p.seq;
+        }
+        public String name() {
+            return "fifo";
+        }
+    } // Fifo
+
+    /** Order with the fewest bushels first; ties oldest first. */
+    static class SmallestFirst extends FillPolicy {
+        protected long rank(PendingOrder p) {
+            return ((long) p.size << 40) + p.seq;
+        }
+        public String name() {
+            return "smallest";
+        }
+    } // SmallestFirst
+
+    /** Order that was furthest from being fillable when it arrived first;
+     * ties oldest first.
+     */
+    static class LargestDeficitFirst extends FillPolicy {
+        protected long rank(PendingOrder p) {
+            return ((long) -p.deficit << 40) + p.seq;
+        }
+        public String name() {
+            return "deficit";
+        }
+    } // LargestDeficitFirst
+
+    /** Smallest order first, but every AGE_PER_BUSHEL of waiting counts as
+     * one bushel less, so large orders cannot be starved indefinitely.
+     * The rank size * AGE_PER_BUSHEL - (now - queuedAt) differs from the
+     * one below only by now, the same for every order.
+     */
+    static class AgedFair extends FillPolicy {
+        protected long rank(PendingOrder p) {
+            return (long) p.size * AGE_PER_BUSHEL + p.queuedAt;
+        }
+        public String name() {
+            return "aged";
+        }
+    } // AgedFair
+} // FillPolicy
@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A concurrent histogram of non-negative long values (typically latencies
+ * in nanoseconds) with log-linear buckets: each power of two is split into
+ * SUB linear sub-buckets, so reported percentiles are within about 12% of
+ * the true value.  Recording is one atomic increment and never allocates.
+ */
+public class Histogram {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** log2 of the number of sub-buckets per power of two. */
+    private static final int SUB_BITS = 3;
+
+    /** Number of sub-buckets per power of two. */
+    private static final int SUB = 1 << SUB_BITS;
+
+    /** Bucket counts. */
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+
+    /** Returns the bucket holding value v.
+     * @param v a non-negative value.
+     * @return the bucket index.
+     */
+    private static int bucket(long v) {
+        if (v < SUB) {
+            return (int) Math.max(v, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+    } // bucket(long)
+
+    /** Returns the largest value that falls in bucket b.
+     * @param b a bucket index.
+     * @return the bucket's upper bound.
+     */
+    private static long upper(int b) {
+        if (b < SUB) {
+            return b;
+        }
+        int exp = (b >>> SUB_BITS) + SUB_BITS - 1;
+        long base = (long) (SUB | (b & (SUB - 1))) << (exp - SUB_BITS);
+        return base + (1L << (exp - SUB_BITS)) - 1;
+    } // upper(int)
+
+    /** Records one value.
+     * @param v the value; negative values are recorded as 0.
+     */
+    public void record(long v) {
+        counts.incrementAndGet(bucket(v));
+    } // record(long)
+
+    /** Adds every value recorded in "other" to this histogram.
+     * @param other another histogram.
+     */
+    public void addAll(Histogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+    } // addAll(Histogram)
+
+    /** Returns the number of values recorded.
+     * @return the number of values recorded.
+     */
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        return n;
+    } // count()
+
+    /** Returns (an upper bound on) the p-th percentile of the recorded values.
+     * @param p the percentile, between 0 and 1.
+     * @return the value, or 0 if nothing has been recorded.
+     */
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upper(i);
+            }
+        }
+        return upper(counts.length() - 1);
+    } // percentile(double)
+
+    /** Returns a summary of the form "n = N, p50 = .., p99 = .., p999 = ..",
+     * with the percentiles in microseconds.
+     * @return the summary.
+     */
+    public String toString() {
+        return String.format("n = %d, p50 = %.1f us, p99 = %.1f us, p999 = %.1f us",
+            count(), percentile(0.50) / 1e3, percentile(0.99) / 1e3,
+            percentile(0.999) / 1e3);
+    } // toString()
+
+    /** Returns the count and percentiles (in ns) as comma-separated values:
+     * count,p50,p99,p999.
+     * @return the CSV fields.
+     */
+    public String toCsv() {
+        return String.format("%d,%d,%d,%d", count(), percentile(0.50),
+            percentile(0.99), percentile(0.999));
+    } // toCsv()
+} // Histogram
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** An append-only, memory-mapped ledger of every change to the traders'
+ * inventories, from which their state can be rebuilt after a crash and
+ * whose workload can be replayed against another Trader implementation.
+ * <p>
+ * The file is a sequence of RECORD-byte records, each eight ints:
+ * type, trader (Grain.ordinal() of its specialty), grain (ordinal, or -1),
+ * amount, and four order amounts in Grain.ordinal() order.  The type is
+ * written last, so a record whose type is still 0 was never completed;
+ * the file is read up to the first such record.  Records for one trader
+ * are appended while that trader's lock is held, so they appear in the
+ * order the changes were made.
+ */
+public class Ledger {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Record type: trader's primary += amount. */
+    public static final int DELIVER = 1;
+
+    /** Record type: trader's grain += amount, primary -= amount.  Written by
+     * both sides of a swap.
+     */
+    public static final int SWAP = 2;
+
+    /** Record type: trader's inventory -= order. */
+    public static final int GET = 3;
+
+    /** Record type: trader's inventory += order (a filled order that was
+     * cancelled before it could be handed over).
+     */
+    public static final int RETURN = 4;
+
+    /** Record type: a brewer consumed order, obtained from trader. */
+    public static final int CONSUME = 5;
+
+    /** Record type: the trader's whole inventory is order. */
+    public static final int CHECKPOINT = 6;
+
+    /** Size of a record in bytes. */
+    public static final int RECORD = 32;
+
+    /** log2 of the number of records per mapped segment. */
+    private static final int SEGMENT_BITS = 20;
+
+    /** Maximum number of segments (so at most 32 GB per ledger). */
+    private static final int MAX_SEGMENTS = 1024;
+
+    /** The ledger file. */
+    private final FileChannel channel;
+
+    /** Mapped segments, created on first use. */
+    private final AtomicReferenceArray<MappedByteBuffer> segments =
+        new AtomicReferenceArray<MappedByteBuffer>(MAX_SEGMENTS);
+
+    /** Number of the next record to be appended. */
+    private final AtomicLong next;
+
+    /** Opens a ledger for appending, after any records already in it.
+     * @param path the ledger file; created if it does not exist.
+     * @throws IOException if the file cannot be opened.
+     */
+    public Ledger(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long n = 0;
+        while (n < channel.size() / RECORD && segment(n).getInt(offset(n)) != 0) {
+            n++;
+        }
+        next = new AtomicLong(n);
+    } // Ledger(Path)
+
+    /** Returns the byte offset of record n within its segment. */
+    private static int offset(long n) {
+        return (int) (n & ((1 << SEGMENT_BITS) - 1)) * RECORD;
+    } // offset(long)
+
+    /** Returns the segment holding record n, mapping it if need be.
+     * @throws IOException if n is past the last segment, or the segment
+     *         cannot be mapped.
+     */
+    private MappedByteBuffer segment(long n) throws IOException {
+        if (n >>> SEGMENT_BITS >= MAX_SEGMENTS) {
+            throw new IOException("ledger full: at most "
+                + ((long) MAX_SEGMENTS << SEGMENT_BITS) + " records");
+        }
+        int s = (int) (n >>> SEGMENT_BITS);
+        MappedByteBuffer b = segments.get(s);
+        if (b == null) {
+            synchronized (this) {
+                b = segments.get(s);
+                if (b == null) {
+                    long size = (long) RECORD << SEGMENT_BITS;
+                    b = channel.map(FileChannel.MapMode.READ_WRITE, s * size, size);
+                    b.order(ByteOrder.nativeOrder());
+                    segments.set(s, b);
+                }
+            }
+        }
+        return b;
+    } // segment(long)
+
+    /** Appends one record.
+     * @param type the record type.
+     * @param trader the trader's specialty.
+     * @param grain the other grain involved, or null.
+     * @param amount the amount involved.
+     * @param order the order involved, or null.
+     */
+    public void append(int type, Grain trader, Grain grain, int amount,
+            Order order) {
+        long n = next.getAndIncrement();
+        MappedByteBuffer b;
+        try {
+            b = segment(n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int off = offset(n);
+        b.putInt(off + 4, trader.ordinal());
+        b.putInt(off + 8, grain == null ? -1 : grain.ordinal());
+        b.putInt(off + 12, amount);
+        for (Grain g : Grain.values()) {
+            b.putInt(off + 16 + 4 * g.ordinal(), order == null ? 0 : order.get(g));
+        }
+        b.putInt(off, type);
+    } // append(int,Grain,Grain,int,Order)
+
+    /** Forces the records appended so far out to the file and closes it.
+     * @throws IOException if the file cannot be written.
+     */
+    public void close() throws IOException {
+        for (int s = 0; s < MAX_SEGMENTS; s++) {
+            MappedByteBuffer b = segments.get(s);
+            if (b != null) {
+                b.force();
+            }
+        }
+        channel.close();
+    } // close()
+
+    /** A callback for read(). */
+    public interface Visitor {
+        /** Called for each complete record, in file order.
+         * @param type the record type.
+         * @param trader the trader's specialty.
+         * @param grain the other grain involved, or null.
+         * @param amount the amount involved.
+         * @param order the order involved (reused between calls).
+         */
+        void visit(int type, Grain trader, Grain grain, int amount, Order order);
+    } // Visitor
+
+    /** Reads every complete record in a ledger file.
+     * @param path the ledger file.
+     * @param v called for each record.
+     * @return the number of records read.
+     * @throws IOException if the file cannot be read.
+     */
+    public static long read(Path path, Visitor v) throws IOException {
+        Grain[] grains = Grain.values();
+        Order order = new Order();
+        long n = 0;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long records = ch.size() / RECORD;
+            long perSegment = 1L << SEGMENT_BITS;
+            for (long base = 0; base < records; base += perSegment) {
+                long count = Math.min(perSegment, records - base);
+                MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY,
+                    base * RECORD, count * RECORD);
+                b.order(ByteOrder.nativeOrder());
+                for (int i = 0; i < count; i++) {
+                    int off = i * RECORD;
+                    int type = b.getInt(off);
+                    if (type == 0) {
+                        return n;
+                    }
+                    int gi = b.getInt(off + 8);
+                    for (Grain g : grains) {
+                        order.set(g, b.getInt(off + 16 + 4 * g.ordinal()));
+                    }
+                    v.visit(type, grains[b.getInt(off + 4)],
+                        gi < 0 ? null : grains[gi], b.getInt(off + 12), order);
+                    n++;
+                }
+            }
+        }
+        return n;
+    } // read(Path,Visitor)
+
+    /** Applies one record to an inventory.
+     * @param inv the trader's inventory.
+     * @param type the record type.
+     * @param trader the trader's specialty.
+     * @param grain the other grain involved, or null.
+     * @param amount the amount involved.
+     * @param order the order involved.
+     */
+    static void apply(Order inv, int type, Grain trader, Grain grain,
+            int amount, Order order) {
+        switch (type) {
+        case DELIVER:
+            inv.change(trader, amount);
+            break;
+        case SWAP:
+            inv.change(grain, amount);
+            inv.change(trader, -amount);
+            break;
+        case GET:
+            for (Grain g : Grain.values()) {
+                inv.change(g, -order.get(g));
+            }
+            break;
+        case RETURN:
+            inv.addAll(order);
+            break;
+        case CHECKPOINT:
+            for (Grain g : Grain.values()) {
+                inv.set(g, order.get(g));
+            }
+            break;
+        default:
+            break;
+        }
+    } // apply(Order,int,Grain,Grain,int,Order)
+
+    /** Rebuilds every trader's inventory from a ledger: the last checkpoint
+     * of each trader plus the records for it that follow.
+     * @param path the ledger file.
+     * @return the inventory of each trader, by specialty.
+     * @throws IOException if the file cannot be read.
+     */
+    public static EnumMap<Grain, Order> recover(Path path) throws IOException {
+        final EnumMap<Grain, Order> inv = new EnumMap<Grain, Order>(Grain.class);
+        for (Grain g : Grain.values()) {
+            inv.put(g, new Order());
+        }
+        read(path, (type, trader, grain, amount, order) ->
+            apply(inv.get(trader), type, trader, grain, amount, order));
+        return inv;
+    } // recover(Path)
+} // Ledger
@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import static java.lang.System.*;
+
+
+/** Recovers trader state from a Ledger, or replays the workload it records
+ * against a fresh set of traders of a chosen implementation.
+ * <p>
+ * Replay loads every DELIVER, SWAP and GET record into memory and then
+ * issues them, in ledger order and from one thread, as deliver(), swap()
+ * and get() calls, so that different Trader implementations can be timed
+ * on exactly the same input.  Because each trader's records are in the
+ * order its inventory changed, every get() and swap() can be completed at
+ * once; one that cannot, because the replay has diverged from the ledger
+ * (for example after a RETURN record, which has no Trader counterpart), is
+ * skipped and counted rather than left to block.
+ */
+public class LedgerReplay {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Prints a usage message and terminates. */
+    private static void usage() {
+        err.println(
+            "usage: LedgerReplay [-R][-k lock|lockfree][-n repeat] ledger");
+        exit(1);
+    } // usage()
+
+    /** Main program.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean recoverOnly = false;
+        String kind = "lock";
+        int repeat = 1;
+        GetOpt options = new GetOpt("LedgerReplay", args, "Rk:n:");
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'R':
+                recoverOnly = true;
+                break;
+            case 'k':
+                kind = options.optarg;
+                break;
+            case 'n':
+                repeat = Integer.parseInt(options.optarg);
+                break;
+            }
+        }
+        if (options.optind != args.length - 1) {
+            usage();
+        }
+        Path path = new File(args[options.optind]).toPath();
+
+        if (recoverOnly) {
+            EnumMap<Grain, Order> inv = Ledger.recover(path);
+            for (Grain g : Grain.values()) {
+                out.printf("%s trader holds %s%n", g, inv.get(g));
+            }
+            return;
+        }
+
+        // Load the workload: one int[] per record, {type, trader, grain,
+        // amount, o0, o1, o2, o3}.
+        final ArrayList<int[]> ops = new ArrayList<int[]>();
+        long total = Ledger.read(path, (type, trader, grain, amount, order) -> {
+            if (type == Ledger.DELIVER || type == Ledger.SWAP
+                    || type == Ledger.GET) {
+                int[] r = new int[4 + Grain.values().length];
+                r[0] = type;
+                r[1] = trader.ordinal();
+                r[2] = grain == null ? -1 : grain.ordinal();
+                r[3] = amount;
+                for (Grain g : Grain.values()) {
+                    r[4 + g.ordinal()] = order.get(g);
+                }
+                ops.add(r);
+            }
+        });
+        out.printf("%d records, %d to replay against %s traders%n",
+            total, ops.size(), kind);
+
+        Grain[] grains = Grain.values();
+        for (int round = 0; round < repeat; round++) {
+            Trader[] traders = new Trader[grains.length];
+            for (Grain g : grains) {
+                traders[g.ordinal()] = TraderBench.newTrader(kind, g);
+            }
+            Order order = new Order();
+            long skipped = 0;
+            long diverged = 0;
+            long start = nanoTime();
+            for (int[] r : ops) {
+                Trader t = traders[r[1]];
+                switch (r[0]) {
+                case Ledger.DELIVER:
+                    t.deliver(r[3]);
+                    break;
+                case Ledger.SWAP:
+                    if (t.getAmountOnHand().get(grains[r[1]]) >= r[3]) {
+                        t.swap(grains[r[2]], r[3]);
+                    } else {
+                        diverged++;
+                    }
+                    break;
+                default:
+                    for (Grain g : grains) {
+                        order.set(g, r[4 + g.ordinal()]);
+                    }
+                    if (t.getAmountOnHand().covers(order)) {
+                        t.get(order);
+                    } else {
+                        skipped++;
+                    }
+                    break;
+                }
+            }
+            double secs = (nanoTime() - start) / 1e9;
+            out.printf("round %d: %.3f s, %.0f ops/sec, %d gets skipped%n",
+                round, secs, ops.size() / secs, skipped);
+            if (diverged > 0) {
+                out.printf("round %d: diverged from the ledger: %d swaps"
+                    + " skipped for want of stock%n", round, diverged);
+            }
+            if (round == repeat - 1) {
+                for (Grain g : grains) {
+                    out.printf("%s trader holds %s%n",
+                        g, traders[g.ordinal()].getAmountOnHand());
+                }
+            }
+        }
+    } // main(String[])
+} // LedgerReplay
@@ -0,0 +1,378 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//a trader implementation that keeps its inventory in a single AtomicLong
+//and commits every change with compare-and-set instead of a lock
+public class LockFreeTraderImpl implements Trader{
+
+	//number of bits used for each grain's count in the packed inventory
+	private static final int BITS = 16;
+
+	//largest count a single grain can reach
+	public static final int MAX_AMOUNT = (1 << BITS) - 1;
+
+	private static final Grain[] GRAINS = Grain.values();
+
+	//class variables that represent the trader's primary grain
+	public final Grain primary;
+
+	//the four grain counts, BITS bits each, at bit BITS * g.ordinal()
+	private final AtomicLong packed;
+
+	//callers that cannot proceed wait on changed, which is only signalled
+	//when waiting is nonzero, so the compare-and-set paths never touch the
+	//lock while nobody is blocked
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	//incremented by nudge(), so that a caller waiting to swap for a grain
+	//also wakes when that grain arrives at its specialist
+	private final AtomicLong nudges = new AtomicLong();
+
+	//sources grains other than primary from the other specialists, or null
+	private volatile SwapNegotiator negotiator;
+
+
+	public LockFreeTraderImpl(Grain prim) {
+		this.primary = prim;
+		this.packed = new AtomicLong();
+	}
+
+	//the amount of g in the packed inventory inv
+	private static int count(long inv, Grain g) {
+		return (int) (inv >>> (BITS * g.ordinal())) & MAX_AMOUNT;
+	}
+
+	//inv with n added to the count of g (n may be negative, but the count
+	//must stay within 0 .. MAX_AMOUNT or it spills into its neighbours)
+	private static long plus(long inv, Grain g, int n) {
+		return inv + ((long) n << (BITS * g.ordinal()));
+	}
+
+	//rejects an amount that would borrow from or carry into a neighbouring
+	//count
+	private static void check(int amt) {
+		if (amt < 0 || amt > MAX_AMOUNT) {
+			throw new IllegalArgumentException("amount " + amt);
+		}
+	}
+
+	/** Reports on the total amount of resources held by this Trader.
+	 * The result is a consistent snapshot taken with a single volatile read.
+	 * @return an indication of the amount of each type of grain stocked by this
+	 * Trader.
+	 */
+	public Order getAmountOnHand() {
+		return snapshot(new Order());
+	}
+
+	/** Copies the amount of each grain held into "into", as one consistent
+	 * snapshot taken with a single volatile read.
+	 * @param into the Order to fill in.
+	 * @return into.
+	 */
+	public Order snapshot(Order into) {
+		long inv = packed.get();
+		for (Grain g : GRAINS) {
+			into.set(g, count(inv, g));
+		}
+		return into;
+	}
+
+	/** Lets this trader swap its primary grain for other grains it is short
+	 * of when filling an order.
+	 * @param negotiator the negotiator to use, or null to stop swapping.
+	 */
+	public void setNegotiator(SwapNegotiator negotiator) {
+		this.negotiator = negotiator;
+	}
+
+	//commits a change from inv to next and wakes any blocked callers
+	private boolean update(long inv, long next) {
+		if (!packed.compareAndSet(inv, next)) {
+			return false;
+		}
+		wake();
+		return true;
+	}
+
+	//wakes the blocked callers, if there are any
+	private void wake() {
+		if (waiting.get() > 0) {
+			lock.lock();
+			try {
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** Wakes the callers waiting here, so that those short of a grain that
+	 * has just arrived elsewhere in the market try swapping for it again.
+	 */
+	public void nudge() {
+		nudges.incrementAndGet();
+		wake();
+	}
+
+	/** Blocks until the inventory is no longer inv or nudge() has been
+	 * called since nudges was stamp.  A caller registers in waiting before
+	 * it looks at either again, and update() and nudge() read waiting after
+	 * their own change, so one side always sees the other and no wake-up
+	 * is lost.
+	 * @param inv the inventory the caller could not use.
+	 * @param stamp the value of nudges read before inv.
+	 * @throws InterruptedException if the current thread is interrupted.
+	 */
+	private void awaitChange(long inv, long stamp) throws InterruptedException {
+		waiting.incrementAndGet();
+		try {
+			lock.lockInterruptibly();
+			try {
+				while (packed.get() == inv && nudges.get() == stamp) {
+					changed.await();
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/** A request from a brewer.
+	 * The caller is blocked until the request can be completely filled.
+	 * All four grains are debited by one compare-and-set, so an order is
+	 * either filled completely or not at all.
+	 * @param order the number of bushels needed of each type of grain.
+	 * @throws InterruptedException if the current thread is interrupted while
+	 *            waiting for the order to be filled.
+	 */
+	public void get(Order order) throws InterruptedException {
+		for (Grain g : GRAINS) {
+			check(order.get(g));
+		}
+		for (;;) {
+			long stamp = nudges.get();
+			long inv = packed.get();
+			long next = inv;
+			boolean covered = true;
+			for (Grain g : GRAINS) {
+				int n = order.get(g);
+				if (n > count(inv, g)) {
+					covered = false;
+					break;
+				}
+				next = plus(next, g, -n);
+			}
+			if (covered) {
+				if (update(inv, next)) {
+					return;
+				}
+			} else if (negotiator == null || !negotiate(order)) {
+				awaitChange(inv, stamp);
+			}
+		}
+	}
+
+	/** Tries to make up the shortfall of "order" in every grain other than
+	 * primary by swapping surplus primary grain with the specialists, as
+	 * TraderImpl does.  The surplus offered is taken out of the inventory
+	 * before the swap and whatever is not swapped is put back with what was
+	 * obtained.
+	 * @param order the order being filled.
+	 * @return true if any grain was obtained.
+	 */
+	private boolean negotiate(Order order) {
+		SwapNegotiator n = this.negotiator;
+		boolean gotAny = false;
+		for (Grain g : GRAINS) {
+			if (g == primary) {
+				continue;
+			}
+			long inv;
+			int want;
+			do {
+				inv = packed.get();
+				want = Math.min(order.get(g) - count(inv, g),
+					count(inv, primary) - order.get(primary));
+				want = Math.min(want, MAX_AMOUNT - count(inv, g));
+			} while (want > 0 && !update(inv, plus(inv, primary, -want)));
+			if (want <= 0) {
+				continue;
+			}
+			int got = n.acquire(primary, g, want);
+			putBack(primary, want - got, g, got);
+			gotAny |= got > 0;
+		}
+		return gotAny;
+	}
+
+	//adds back the primary grain set aside for a swap and the grain it
+	//obtained.  Deliveries and other swaps may have filled either count
+	//meanwhile, in which case this waits for brewers to take some rather
+	//than overflow
+	private void putBack(Grain p, int kept, Grain g, int got) {
+		boolean interrupted = false;
+		for (;;) {
+			long inv = packed.get();
+			if (count(inv, p) + kept <= MAX_AMOUNT
+					&& count(inv, g) + got <= MAX_AMOUNT) {
+				if (update(inv, plus(plus(inv, p, kept), g, got))) {
+					break;
+				}
+				continue;
+			}
+			try {
+				awaitChange(inv, nudges.get());
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Responds to a swap request from another Trader.
+	 * The other Trader calls this method to request a trade of a particular
+	 * type of grain for this Trader's specialty.  Delays the caller until this
+	 * Trader can complete the swap.
+	 * @param what the type of grain the other Trader wants to swap.
+	 * @param amt the number of bushels to swap.
+	 * @throws InterruptedException if the current thread is interrupted while
+	 *            waiting for the swap to succeed.
+	 */
+	public void swap(Grain what, int amt) throws InterruptedException {
+		check(amt);
+		for (;;) {
+			long inv = packed.get();
+			if (count(inv, primary) >= amt
+					&& (what == primary || count(inv, what) + amt <= MAX_AMOUNT)) {
+				if (update(inv, plus(plus(inv, primary, -amt), what, amt))) {
+					return;
+				}
+			} else {
+				awaitChange(inv, nudges.get());
+			}
+		}
+	}
+
+	/** Responds to a swap request from another Trader without waiting.
+	 * Swaps as much as this Trader's stock of its specialty, and its room
+	 * for "what", allow right now, up to "amt".
+	 * @param what the type of grain the other Trader is offering.
+	 * @param amt the most bushels to swap.
+	 * @return the number of bushels swapped.
+	 */
+	public int trySwap(Grain what, int amt) {
+		if (what == primary) {
+			return 0;
+		}
+		for (;;) {
+			long inv = packed.get();
+			int n = Math.min(amt, Math.min(count(inv, primary),
+				MAX_AMOUNT - count(inv, what)));
+			if (n <= 0) {
+				return 0;
+			}
+			if (update(inv, plus(plus(inv, primary, -n), what, n))) {
+				return n;
+			}
+		}
+	}
+
+	/** Takes back an order this trader filled that the caller could not
+	 * use, unless some count would pass MAX_AMOUNT.
+	 * @param order the order, exactly as it was filled.
+	 * @return true if the grain is back in stock.
+	 */
+	public boolean restock(Order order) {
+		for (;;) {
+			long inv = packed.get();
+			long next = inv;
+			for (Grain g : GRAINS) {
+				if (count(inv, g) + order.get(g) > MAX_AMOUNT) {
+					return false;
+				}
+				next = plus(next, g, order.get(g));
+			}
+			if (update(inv, next)) {
+				break;
+			}
+		}
+		SwapNegotiator n = this.negotiator;
+		if (n != null) {
+			for (Grain g : GRAINS) {
+				if (order.get(g) > 0) {
+					n.supplied(g);
+				}
+			}
+		}
+		return true;
+	}
+
+	//tells the rest of the market that primary has arrived
+	private void supplied() {
+		SwapNegotiator n = this.negotiator;
+		if (n != null) {
+			n.supplied(primary);
+		}
+	}
+
+	/** Indicates whether a delivery of "amt" would take the specialty count
+	 * past MAX_AMOUNT.
+	 * @param amt the size of the delivery.
+	 * @return true if the delivery would have to wait.
+	 */
+	public boolean isFull(int amt) {
+		return count(packed.get(), primary) + amt > MAX_AMOUNT;
+	}
+
+	/** Accepts a delivery from the supplier.
+	 * The supplier calls this method to deliver some of this Trader's
+	 * specialty grain.  A delivery that would take the specialty count past
+	 * MAX_AMOUNT waits until brewers have taken enough.
+	 * @param amt the number of bushels of this Trader's specialty
+	 *               being delivered.
+	 * @throws InterruptedException if the current thread is interrupted while
+	 *            waiting for room.
+	 */
+	public void deliver(int amt) throws InterruptedException {
+		check(amt);
+		for (;;) {
+			long inv = packed.get();
+			if (count(inv, primary) + amt > MAX_AMOUNT) {
+				awaitChange(inv, nudges.get());
+			} else if (update(inv, plus(inv, primary, amt))) {
+				supplied();
+				return;
+			}
+		}
+	}
+
+	/** Accepts a delivery from the supplier only if it fits; never waits.
+	 * @param amt the number of bushels of this Trader's specialty
+	 *               being delivered.
+	 * @return true if the delivery was accepted, false if it would take
+	 *               the specialty count past MAX_AMOUNT.
+	 */
+	public boolean tryDeliver(int amt) {
+		check(amt);
+		for (;;) {
+			long inv = packed.get();
+			if (count(inv, primary) + amt > MAX_AMOUNT) {
+				return false;
+			}
+			if (update(inv, plus(inv, primary, amt))) {
+				supplied();
+				return true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+import java.util.*;
+
+/** One shard of a P2 run: a specialist trader for every grain, the
+ * negotiator that swaps grain between them, and the suppliers and brewers
+ * that trade only here.
+ * <p>
+ * Markets share nothing but the workload, so K of them spread the load
+ * over K times as many trader locks.  A brewer's order that its own market
+ * cannot fill may still take grain from its siblings: each market's
+ * negotiator steals from the other markets' specialists when a swap at
+ * home fails (see SwapNegotiator.steal()).
+ */
+public class Market {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** This market's position among its siblings, from 0. */
+    public final int id;
+
+    /** traders.get(g) is this market's specialist in grain g. */
+    final EnumMap<Grain, Trader> traders;
+
+    /** Swaps grain between this market's traders. */
+    final SwapNegotiator negotiator;
+
+    /** The exchange behind this market's traders, or null if they are
+     * TraderImpls or the like.
+     */
+    BookExchange exchange;
+
+    /** The suppliers delivering to this market. */
+    final List<Supplier> suppliers = new ArrayList<Supplier>();
+
+    /** The brewers buying from this market. */
+    final List<Brewer> brewers = new ArrayList<Brewer>();
+
+    /** Creates a market.
+     * @param id the market's position among its siblings.
+     * @param traders traders.get(g) is the specialist in grain g.
+     */
+    public Market(int id, EnumMap<Grain, Trader> traders) {
+        this.id = id;
+        this.traders = traders;
+        this.negotiator = new SwapNegotiator(traders);
+    } // Market(int,EnumMap)
+
+    /** Returns this market's specialist for a given grain.
+     * @param g the grain.
+     * @return the Trader that specializes in grain g.
+     */
+    public Trader specialist(Grain g) {
+        return traders.get(g);
+    } // specialist(Grain)
+
+    /** Chooses where to send a brewer's request for "amt" bushels of g:
+     * the specialist if it has them, otherwise any other trader here that
+     * does, otherwise the specialist anyway, which will swap for the rest.
+     * @param g the grain.
+     * @param amt the number of bushels wanted.
+     * @param scratch an Order to take trader snapshots in.
+     * @return the specialty of the chosen trader.
+     */
+    public Grain holder(Grain g, int amt, Order scratch) {
+        if (traders.get(g).snapshot(scratch).get(g) >= amt) {
+            return g;
+        }
+        for (Grain h : Grain.values()) {
+            if (h != g && traders.get(h).snapshot(scratch).get(g) >= amt) {
+                return h;
+            }
+        }
+        return g;
+    } // holder(Grain,int,Order)
+
+    /** Reports how many waiting requests at this market's traders are
+     * short of a given grain.
+     * @param g the grain.
+     * @return the number of requests.
+     */
+    public int demand(Grain g) {
+        return negotiator.demand(g);
+    } // demand(Grain)
+
+    /** Lets every market's negotiator steal from all the others.
+     * @param markets the markets.
+     */
+    static void link(Market[] markets) {
+        if (markets.length < 2) {
+            return;
+        }
+        for (Market m : markets) {
+            List<SwapNegotiator> others = new ArrayList<SwapNegotiator>();
+            for (int i = 1; i < markets.length; i++) {
+                others.add(markets[(m.id + i) % markets.length].negotiator);
+            }
+            m.negotiator.setSiblings(others);
+        }
+    } // link(Market[])
+} // Market
@@ -1,68 +1,241 @@
-import java.util.*;
-
+import java.util.Arrays;
 
 public class Order {
 	/** Source version number. */
 	private static final int VERSION = 1;
 
-    /** The actual mapping. */
-    private Map<Grain,Integer> amt;
+    /** Cached copy of Grain.values(), so loops do not clone it each time. */
+    private static final Grain[] GRAINS = Grain.values();
+
+    /** The catalogue naming the entries of amt. */
+    private final Resources resources;
+
+    /** The actual amounts, indexed by resource id (Grain.ordinal() for the
+     * default catalogue).
+     * <p>
+     * The bulk operations below loop over the whole vector without
+     * data-dependent branches or early exits, the shape HotSpot's
+     * superword pass can compile to SIMD instructions.  Their cost is still
+     * linear in the number of resources, with a small constant; OrderBench
+     * reports it per resource.  The JDK Vector API is not used: it is an
+     * incubator module, which a plain "javac *.java" build cannot see.
+     */
+    private final int[] amt;
 
-    /** Creates a new Order with all amounts zero. */
+    /** Creates a new Order for the four grains with all amounts zero. */
     public Order() {
-        amt = new EnumMap<Grain,Integer>(Grain.class);
-        for (Grain g : Grain.values()) {
-            amt.put(g, 0);
-        }
+        this(Resources.GRAINS);
     } // Order()
 
+    /** Creates a new Order for a catalogue of resources with all amounts
+     * zero.
+     * @param resources the catalogue.
+     */
+    public Order(Resources resources) {
+        this.resources = resources;
+        this.amt = new int[resources.size()];
+    } // Order(Resources)
+
     /** Returns a readable version of this order.
      * @return a readable version of this order.
      */
     public String toString() {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         String sep = "[";
-        for (Grain g : Grain.values()) {
-            sb.append(String.format("%s%d %s", sep, amt.get(g), g));
+        for (int i = 0; i < amt.length; i++) {
+            sb.append(sep).append(amt[i]).append(' ').append(resources.name(i));
             sep = ", ";
         }
         sb.append("]");
         return sb.toString();
     } // toString()
 
+    /** Returns the catalogue this order is for.
+     * @return the catalogue.
+     */
+    public Resources resources() {
+        return resources;
+    } // resources()
+
+    /** Returns the number of resources in this order.
+     * @return the length of the vector.
+     */
+    public int size() {
+        return amt.length;
+    } // size()
+
     /** Gets the amount of "g" in this order.
      * @param g the grain
      * @return the amount of grain g
      */
     public int get(Grain g) {
-        return amt.get(g).intValue();
+        return amt[g.ordinal()];
     } // get(Grain)
 
+    /** Gets the amount of resource "id" in this order.
+     * @param id the resource id.
+     * @return the amount.
+     */
+    public int get(int id) {
+        return amt[id];
+    } // get(int)
+
     /** Sets the amount of "g" to "n".
      * @param g a grain
      * @param n the amount of grain g
      */
     public void set(Grain g, int n) {
-        amt.put(g, n);
+        amt[g.ordinal()] = n;
     } // set(Grain,int)
 
+    /** Sets the amount of resource "id" to "n".
+     * @param id the resource id.
+     * @param n the amount.
+     */
+    public void set(int id, int n) {
+        amt[id] = n;
+    } // set(int,int)
+
     /** Changes the mount of "g" by "diff".
      * @param g a grain
      * @param diff the change in the amount of grain g
      */
     public void change(Grain g, int diff) {
-        amt.put(g, amt.get(g) + diff);
+        amt[g.ordinal()] += diff;
     } // change(Grain,int)
 
+    /** Changes the amount of resource "id" by "diff".
+     * @param id the resource id.
+     * @param diff the change.
+     */
+    public void change(int id, int diff) {
+        amt[id] += diff;
+    } // change(int,int)
+
     /** Returns a copy of this Order.
      * @return a copy of this Order.
      */
     public Order copy() {
-        Order result = new Order();
-        for (Grain g : Grain.values()) {
-            result.amt.put(g, amt.get(g));
-        }
+        Order result = new Order(resources);
+        System.arraycopy(amt, 0, result.amt, 0, amt.length);
         return result;
     } // copy()
-        
+
+    /** Sets every amount in this order to the one in "other".
+     * @param other the amounts to copy.
+     * @throws IllegalArgumentException if other is for another catalogue.
+     */
+    public void setAll(Order other) {
+        check(other);
+        System.arraycopy(other.amt, 0, amt, 0, amt.length);
+    } // setAll(Order)
+
+    /** Sets every amount in this order to zero. */
+    public void clear() {
+        Arrays.fill(amt, 0);
+    } // clear()
+
+    /** Returns the sum of all the amounts in this order.
+     * @return the total number of bushels.
+     */
+    public int total() {
+        int sum = 0;
+        for (int n : amt) {
+            sum += n;
+        }
+        return sum;
+    } // total()
+
+    /** Adds every amount in "other" to this order.
+     * @param other the amounts to add.
+     * @throws IllegalArgumentException if other is for another catalogue.
+     */
+    public void addAll(Order other) {
+        check(other);
+        int[] a = amt;
+        int[] o = other.amt;
+        for (int i = 0; i < a.length; i++) {
+            a[i] += o[i];
+        }
+    } // addAll(Order)
+
+    /** Indicates whether this order holds at least as much of every grain
+     * as "other".  The differences amt[i] - o[i] are taken as longs, which
+     * cannot overflow whatever the amounts (set() and change() accept
+     * negative ones), so the sign bit marks a shortage; or-ing them
+     * together checks every entry with one branch at the end.
+     * @param other the amounts needed.
+     * @return true if every amount in other is covered by this order.
+     * @throws IllegalArgumentException if other is for another catalogue.
+     */
+    public boolean covers(Order other) {
+        check(other);
+        int[] a = amt;
+        int[] o = other.amt;
+        long signs = 0;
+        for (int i = 0; i < a.length; i++) {
+            signs |= (long) a[i] - o[i];
+        }
+        return signs >= 0;
+    } // covers(Order)
+
+    /** Returns the first grain of which "other" asks for more than this
+     * order holds.  Both orders must be for the default catalogue.
+     * @param other the amounts needed.
+     * @return a grain in short supply, or null if other is covered.
+     */
+    public Grain shortage(Order other) {
+        int i = shortageIndex(other);
+        return i < 0 ? null : GRAINS[i];
+    } // shortage(Order)
+
+    /** Returns the first resource of which "other" asks for more than this
+     * order holds.  The common case, no shortage, costs one covers().
+     * @param other the amounts needed.
+     * @return the resource id, or -1 if other is covered.
+     * @throws IllegalArgumentException if other is for another catalogue.
+     */
+    public int shortageIndex(Order other) {
+        if (covers(other)) {
+            return -1;
+        }
+        int[] o = other.amt;
+        for (int i = 0; i < amt.length; i++) {
+            if (o[i] > amt[i]) {
+                return i;
+            }
+        }
+        return -1;
+    } // shortageIndex(Order)
+
+    /** Subtracts "other" from this order if, and only if, this order covers
+     * it.  Otherwise this order is left unchanged.
+     * @param other the amounts to remove.
+     * @return true if the amounts were subtracted.
+     * @throws IllegalArgumentException if other is for another catalogue.
+     */
+    public boolean subtractIfCovered(Order other) {
+        if (!covers(other)) {
+            return false;
+        }
+        int[] a = amt;
+        int[] o = other.amt;
+        for (int i = 0; i < a.length; i++) {
+            a[i] -= o[i];
+        }
+        return true;
+    } // subtractIfCovered(Order)
+
+    /** Checks that "other" is for the same catalogue as this order, so that
+     * entry i means the same resource in both.
+     * @param other the other order.
+     * @throws IllegalArgumentException if the catalogues differ.
+     */
+    private void check(Order other) {
+        if (other.resources != resources) {
+            throw new IllegalArgumentException(
+                "orders are for different resource catalogues");
+        }
+    } // check(Order)
+
 } // class Order
@@ -0,0 +1,121 @@
+import java.util.*;
+import static java.lang.System.*;
+
+
+/** Measures how the cost of Order's bulk operations grows with the number
+ * of resources in the catalogue.  The cost is linear; what the vector-
+ * friendly loops buy is a small, steady cost per resource, which the
+ * ns/resource column shows.  Only Orders are timed, since the market
+ * itself works with the four grains alone.
+ * <p>
+ * For each catalogue size, one thread repeatedly takes a random order from
+ * an inventory that covers it (covers() then subtractIfCovered()) and puts
+ * it back (addAll()), the same sequence of vector operations a trader
+ * performs in get().  Every tenth order asks for more of one resource than
+ * is on hand, to exercise shortageIndex() as well.  Results are the mean
+ * time per iteration, after a warm-up long enough for the JIT to compile
+ * the loops.
+ */
+public class OrderBench {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Number of distinct orders cycled through. */
+    private static final int ORDERS = 64;
+
+    /** Prints a usage message and terminates. */
+    private static void usage() {
+        err.println("usage: OrderBench [-n resources,...][-d millis][-s seed]");
+        exit(1);
+    } // usage()
+
+    /** Times the operations for one catalogue size and prints a line.
+     * @param n the number of resources.
+     * @param millis how long to measure, after an equal warm-up.
+     * @param seed the random seed.
+     */
+    private static void runOne(int n, long millis, long seed) {
+        Resources r = Resources.generate(n);
+        SplittableRandom rand = new SplittableRandom(seed);
+        Order[] orders = new Order[ORDERS];
+        for (int k = 0; k < ORDERS; k++) {
+            orders[k] = new Order(r);
+            for (int i = 0; i < n; i++) {
+                orders[k].set(i, 1 + rand.nextInt(10));
+            }
+            if (k % 10 == 9) {
+                orders[k].set(rand.nextInt(n), 1 << 20);
+            }
+        }
+        Order onHand = new Order(r);
+        for (int i = 0; i < n; i++) {
+            onHand.set(i, 1000);
+        }
+
+        long iterations = 0;
+        long shortages = 0;
+        long start = 0;
+        long warmEnd = nanoTime() + millis * 1000000L;
+        boolean warm = false;
+        for (int k = 0; ; k = (k + 1) % ORDERS) {
+            if ((k & 15) == 0) {
+                long now = nanoTime();
+                if (!warm && now >= warmEnd) {
+                    warm = true;
+                    iterations = 0;
+                    shortages = 0;
+                    start = now;
+                } else if (warm && now - start >= millis * 1000000L) {
+                    break;
+                }
+            }
+            Order o = orders[k];
+            if (onHand.covers(o) && onHand.subtractIfCovered(o)) {
+                onHand.addAll(o);
+            } else if (onHand.shortageIndex(o) >= 0) {
+                shortages++;
+            }
+            iterations++;
+        }
+        double ns = (double) (nanoTime() - start) / iterations;
+        out.printf("%9d %12.1f %12.2f %12d%n",
+            n, ns, ns / n, shortages);
+    } // runOne(int,long,long)
+
+    /** Runs the benchmark for each catalogue size.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) {
+        int[] sizes = { 4, 16, 64, 256, 1024 };
+        long millis = 1000;
+        long seed = 0;
+
+        GetOpt options = new GetOpt("OrderBench", args, "n:d:s:");
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'n':
+                sizes = TraderBench.intList(options.optarg);
+                break;
+            case 'd':
+                millis = Long.parseLong(options.optarg);
+                break;
+            case 's':
+                seed = Long.parseLong(options.optarg);
+                break;
+            }
+        }
+        if (options.optind != args.length) {
+            usage();
+        }
+
+        out.printf("%9s %12s %12s %12s%n",
+            "resources", "ns/iter", "ns/resource", "shortages");
+        for (int n : sizes) {
+            runOne(n, millis, seed);
+        }
+    } // main(String[])
+} // OrderBench
@@ -0,0 +1,272 @@
+/** A continuous double-auction book for one grain: bids to buy and asks to
+ * sell at integer prices from 0 to levels - 1, matched in price-time
+ * priority.
+ * <p>
+ * Everything lives in primitive arrays allocated by the constructor, so
+ * posting, matching and cancelling never allocate.  Price levels are a
+ * ladder indexed by price, each holding a FIFO of resting orders threaded
+ * through next[] and prev[]; bestBid and bestAsk mark the innermost
+ * non-empty levels.  Resting orders are slots of a fixed pool, linked
+ * through next[] while free.
+ * <p>
+ * An incoming order first trades against the opposite side for as long as
+ * the best opposite price is within its limit, at the resting order's
+ * price, and whatever is left then rests at its own price.  Each trade is
+ * reported to a Fills callback, which must not post to or cancel from this
+ * book.  The book is not thread-safe; the caller serializes access.
+ */
+public class OrderBook {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Receives the trades a book makes. */
+    public interface Fills {
+        /** Notes one trade.
+         * @param buyer the owner of the bid.
+         * @param seller the owner of the ask.
+         * @param price the price traded at.
+         * @param qty the number of bushels traded.
+         */
+        void filled(int buyer, int seller, int price, int qty);
+    } // Fills
+
+    /** Marks the end of a list. */
+    private static final int NONE = -1;
+
+    private final Fills fills;
+
+    /** Number of price levels. */
+    private final int levels;
+
+    // The order pool, indexed by order id:
+
+    /** Bushels still wanted or offered. */
+    private final int[] qty;
+
+    /** Owner given when the order was posted. */
+    private final int[] owner;
+
+    /** Price the order rests at. */
+    private final int[] price;
+
+    /** Whether the order is a bid. */
+    private final boolean[] isBid;
+
+    /** Next and previous order at the same level, or in the free list. */
+    private final int[] next;
+    private final int[] prev;
+
+    /** Head of the free list. */
+    private int free;
+
+    // The price ladder, indexed by price:
+
+    /** First and last resting bid at each price, or NONE. */
+    private final int[] bidHead;
+    private final int[] bidTail;
+
+    /** First and last resting ask at each price, or NONE. */
+    private final int[] askHead;
+    private final int[] askTail;
+
+    /** Highest price with a resting bid, or -1. */
+    private int bestBid = -1;
+
+    /** Lowest price with a resting ask, or levels. */
+    private int bestAsk;
+
+    /** Number of trades made. */
+    private long trades;
+
+    /** Creates an empty book.
+     * @param levels the number of price levels; prices run from 0 to
+     *        levels - 1.
+     * @param capacity the most orders that may rest at once.
+     * @param fills the callback trades are reported to.
+     */
+    public OrderBook(int levels, int capacity, Fills fills) {
+        this.fills = fills;
+        this.levels = levels;
+        qty = new int[capacity];
+        owner = new int[capacity];
+        price = new int[capacity];
+        isBid = new boolean[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            next[i] = i + 1 < capacity ? i + 1 : NONE;
+        }
+        free = capacity > 0 ? 0 : NONE;
+        bidHead = new int[levels];
+        bidTail = new int[levels];
+        askHead = new int[levels];
+        askTail = new int[levels];
+        for (int p = 0; p < levels; p++) {
+            bidHead[p] = bidTail[p] = askHead[p] = askTail[p] = NONE;
+        }
+        bestAsk = levels;
+    } // OrderBook(int,int,Fills)
+
+    /** Returns the highest price bid.
+     * @return the price, or -1 if no bid is resting.
+     */
+    public int bestBid() {
+        return bestBid;
+    } // bestBid()
+
+    /** Returns the lowest price asked.
+     * @return the price, or levels if no ask is resting.
+     */
+    public int bestAsk() {
+        return bestAsk;
+    } // bestAsk()
+
+    /** Returns the number of trades made so far.
+     * @return the count.
+     */
+    public long trades() {
+        return trades;
+    } // trades()
+
+    /** Returns the number of bushels a resting order still wants or offers.
+     * @param id the order.
+     * @return the amount.
+     */
+    public int remaining(int id) {
+        return qty[id];
+    } // remaining(int)
+
+    /** Checks a price.
+     * @throws IllegalArgumentException if it is not a level of this book.
+     */
+    private void checkPrice(int p) {
+        if (p < 0 || p >= levels) {
+            throw new IllegalArgumentException("price " + p);
+        }
+    } // checkPrice(int)
+
+    /** Posts a bid, trading against the asks it crosses.
+     * @param who the owner, reported to Fills.
+     * @param limit the most it will pay.
+     * @param amt the number of bushels wanted.
+     * @return the id of the resting remainder, or -1 if it was filled.
+     * @throws IllegalStateException if the remainder cannot rest because
+     *         the pool is full; the trades already made stand.
+     */
+    public int bid(int who, int limit, int amt) {
+        checkPrice(limit);
+        while (amt > 0 && bestAsk <= limit) {
+            int o = askHead[bestAsk];
+            int n = Math.min(amt, qty[o]);
+            fills.filled(who, owner[o], bestAsk, n);
+            trades++;
+            amt -= n;
+            qty[o] -= n;
+            if (qty[o] == 0) {
+                remove(o);
+            }
+        }
+        return amt > 0 ? rest(who, limit, amt, true) : NONE;
+    } // bid(int,int,int)
+
+    /** Posts an ask, trading against the bids it crosses.
+     * @param who the owner, reported to Fills.
+     * @param limit the least it will take.
+     * @param amt the number of bushels offered.
+     * @return the id of the resting remainder, or -1 if it was filled.
+     * @throws IllegalStateException if the remainder cannot rest because
+     *         the pool is full; the trades already made stand.
+     */
+    public int ask(int who, int limit, int amt) {
+        checkPrice(limit);
+        while (amt > 0 && bestBid >= limit) {
+            int o = bidHead[bestBid];
+            int n = Math.min(amt, qty[o]);
+            fills.filled(owner[o], who, bestBid, n);
+            trades++;
+            amt -= n;
+            qty[o] -= n;
+            if (qty[o] == 0) {
+                remove(o);
+            }
+        }
+        return amt > 0 ? rest(who, limit, amt, false) : NONE;
+    } // ask(int,int,int)
+
+    /** Withdraws a resting order.  Does nothing if "id" is not resting or
+     * belongs to someone else, as when it was filled and its slot reused.
+     * @param id the order.
+     * @param who its owner.
+     * @return the number of bushels withdrawn.
+     */
+    public int cancel(int id, int who) {
+        if (id < 0 || id >= qty.length || qty[id] == 0 || owner[id] != who) {
+            return 0;
+        }
+        int n = qty[id];
+        qty[id] = 0;
+        remove(id);
+        return n;
+    } // cancel(int,int)
+
+    /** Puts an order at the back of its level. */
+    private int rest(int who, int p, int amt, boolean bid) {
+        int o = free;
+        if (o == NONE) {
+            throw new IllegalStateException("order book full");
+        }
+        free = next[o];
+        qty[o] = amt;
+        owner[o] = who;
+        price[o] = p;
+        isBid[o] = bid;
+        next[o] = NONE;
+        int[] head = bid ? bidHead : askHead;
+        int[] tail = bid ? bidTail : askTail;
+        prev[o] = tail[p];
+        if (tail[p] == NONE) {
+            head[p] = o;
+        } else {
+            next[tail[p]] = o;
+        }
+        tail[p] = o;
+        if (bid && p > bestBid) {
+            bestBid = p;
+        } else if (!bid && p < bestAsk) {
+            bestAsk = p;
+        }
+        return o;
+    } // rest(int,int,int,boolean)
+
+    /** Unlinks an order from its level, moves the best price past the level
+     * if it is now empty, and returns the order to the pool.
+     */
+    private void remove(int o) {
+        int p = price[o];
+        int[] head = isBid[o] ? bidHead : askHead;
+        int[] tail = isBid[o] ? bidTail : askTail;
+        if (prev[o] == NONE) {
+            head[p] = next[o];
+        } else {
+            next[prev[o]] = next[o];
+        }
+        if (next[o] == NONE) {
+            tail[p] = prev[o];
+        } else {
+            prev[next[o]] = prev[o];
+        }
+        if (head[p] == NONE) {
+            if (isBid[o] && p == bestBid) {
+                while (bestBid >= 0 && bidHead[bestBid] == NONE) {
+                    bestBid--;
+                }
+            } else if (!isBid[o] && p == bestAsk) {
+                while (bestAsk < levels && askHead[bestAsk] == NONE) {
+                    bestAsk++;
+                }
+            }
+        }
+        next[o] = free;
+        free = o;
+    } // remove(int)
+} // OrderBook
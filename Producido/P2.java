@@ -1,4 +1,8 @@
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 import static java.lang.System.*;
 
 
@@ -9,17 +13,134 @@ public class P2 {
     /** Number of Brewers. */
     private static int brewerCount;
 
-    /** Traders.  traders.get(g) is a Trader specializing in grain g. */
-    private static EnumMap<Grain, Trader> traders;
+    /** Number of deliveries the supplier makes. */
+    private static int iterations;
 
-    /** Brewers. */
+    /** The workload profile used by the supplier and the brewers. */
+    private static Workload workload = new Workload();
+
+    /** Grid of settings to sweep: each entry is a setting name followed by
+     * the values to try.  Empty unless --sweep was given.
+     */
+    private static List<String[]> sweep = new ArrayList<String[]>();
+
+    /** Names of the settings that --sweep can vary. */
+    private static final String[] SWEEPABLE = { "brewers", "iterations", "shards",
+        "zipf", "arrivals", "interval", "think", "order", "capacity", "policy",
+        "fulfil", "exchange", "suppliers" };
+
+    /** Long options, all of which are settings set() understands, plus
+     * --sweep.
+     */
+    private static final GetOpt.LongOption[] LONG_OPTIONS = {
+        new GetOpt.LongOption("zipf", GetOpt.REQ_ARG, 'z'),
+        new GetOpt.LongOption("arrivals", GetOpt.REQ_ARG, 'P'),
+        new GetOpt.LongOption("interval", GetOpt.REQ_ARG, 'I'),
+        new GetOpt.LongOption("think", GetOpt.REQ_ARG, 'T'),
+        new GetOpt.LongOption("order", GetOpt.REQ_ARG, 'O'),
+        new GetOpt.LongOption("shards", GetOpt.REQ_ARG, 'K'),
+        new GetOpt.LongOption("fulfil", GetOpt.REQ_ARG, 'F'),
+        new GetOpt.LongOption("exchange", GetOpt.REQ_ARG, 'x'),
+        new GetOpt.LongOption("suppliers", GetOpt.REQ_ARG, 'U'),
+        new GetOpt.LongOption("jfr", GetOpt.REQ_ARG, 'J'),
+        new GetOpt.LongOption("sweep", GetOpt.REQ_ARG, 'S'),
+        new GetOpt.LongOption("serve", GetOpt.REQ_ARG, 'E'),
+        new GetOpt.LongOption("nodes", GetOpt.REQ_ARG, 'N'),
+        new GetOpt.LongOption("connect", GetOpt.REQ_ARG, 'X'),
+    };
+
+    /** Port to serve the traders on with --serve, or -1 for none. */
+    private static int servePort = -1;
+
+    /** Total number of processes to place brewers in (--nodes). */
+    private static int nodes = 1;
+
+    /** host:port of the market to join with --connect, or null. */
+    private static String connect;
+
+    /** The command-line arguments, passed on to the --nodes processes. */
+    private static String[] argv;
+
+    /** Time from the suppliers finishing to quiescence, in nanoseconds. */
+    private static long drainTime;
+
+    /** Serves the traders to other processes, or null. */
+    private static TraderServer server;
+
+    /** Seed given by -r, or -1 for a random one. */
+    private static long seed = -1;
+
+    /** Number of independent markets (shards). */
+    private static int shards = 1;
+
+    /** The markets, each with its own traders, suppliers and brewers. */
+    private static Market[] markets;
+
+    /** Brewers of all the markets; brewer i buys from market i % shards. */
     private static Brewer[] brewers;
 
     /** Brewer threads. */
     private static Thread[] brewerThreads;
 
-    /** The unique supplier. */
-    private static Supplier supplier;
+    /** Suppliers of all the markets; supplier i delivers to market
+     * i % shards.
+     */
+    private static Supplier[] suppliers;
+
+    /** Number of suppliers in each market. */
+    private static int supplierCount = 1;
+
+    /** If true, supplier j of each market delivers only grain j % 4. */
+    private static boolean specialized = false;
+
+    /** If true, use LockFreeTraderImpl rather than TraderImpl. */
+    private static boolean lockFree = false;
+
+    /** If true, run the suppliers and brewers on virtual threads. */
+    private static boolean virtual = false;
+
+    /** If true, run brewers asynchronously on a small scheduled pool. */
+    private static boolean async = false;
+
+    /** If true, brewers split each order into one part per grain and send
+     * the parts to different traders (--fulfil=split).
+     */
+    private static boolean split = false;
+
+    /** If true, grain is bought and sold through a BookExchange in each
+     * market rather than from TraderImpls (--exchange=book).
+     */
+    private static boolean book = false;
+
+    /** Name of the FillPolicy used by each TraderImpl. */
+    private static String policy = "fifo";
+
+    /** If true, -p was given. */
+    private static boolean policyGiven = false;
+
+    /** If not null, the file to write performance metrics to as CSV. */
+    private static String metricsFile;
+
+    /** If not null, the file to write a raw binary event trace to. */
+    private static String traceFile;
+
+    /** If not null, the file to write a Flight Recorder recording to. */
+    private static String jfrFile;
+
+    /** The recording started by --jfr, or null. */
+    private static Recording recording;
+
+    /** If not null, the file to keep a ledger of every trade in. */
+    private static String ledgerFile;
+
+    /** Most bushels each TraderImpl may hold, or Integer.MAX_VALUE. */
+    private static int capacity = Integer.MAX_VALUE;
+
+    /** If true, the supplier delivers the grain brewers are waiting for. */
+    private static boolean adaptive = false;
+
+    /** Conservation sampling period in ms, or 0 for no online checking. */
+    private static long monitorPeriod = 0;
 
     /** Flag to control debugging output. */
     private static boolean verbose = false;
@@ -31,14 +152,49 @@ public class P2 {
         verbose = on;
     } // setVerbose(boolean)
 
-    /** Returns the specialist for a given grain.
+    /** Returns the workload profile.
+     * @return the profile.
+     */
+    public static Workload workload() {
+        return workload;
+    } // workload()
+
+    /** Indicates whether brewers split their orders between traders.
+     * @return true for --fulfil=split, false for --fulfil=whole.
+     */
+    public static boolean splitOrders() {
+        return split;
+    } // splitOrders()
+
+    /** Returns the specialist for a given grain in the first market.
      * @param g the grain.
      * @return the Trader that specializes in grain g.
      */
     public static Trader specialist(Grain g) {
-        return traders.get(g);
+        return markets[0].specialist(g);
     } // specialist(int)
 
+    /** Returns every trader of every market.
+     * @return the traders, market by market in Grain order.
+     */
+    private static List<Trader> allTraders() {
+        List<Trader> all = new ArrayList<Trader>();
+        for (Market m : markets) {
+            all.addAll(m.traders.values());
+        }
+        return all;
+    } // allTraders()
+
+    /** Returns the name to report a trader under: its grain, qualified by
+     * its market when there is more than one.
+     * @param m the market.
+     * @param g the trader's grain.
+     * @return the name.
+     */
+    private static String traderName(Market m, Grain g) {
+        return shards == 1 ? g.toString() : m.id + "/" + g;
+    } // traderName(Market,Grain)
+
     /** If the debugging flag is on, prints a message, preceded by the
      * name of the current thread.  If it is off, does nothing.
      * @param message the message to print.
@@ -61,8 +217,113 @@ public class P2 {
         }
     } // debug(String,Object...)
 
-    /** Random number generator. */
-    private static Random rand;
+    /** Event logger for tracing, or null if tracing is off or over. */
+    private static volatile EventLog eventLog;
+
+    /** Traces an event carrying an order, if tracing is on.
+     * @param type one of the EventLog event types.
+     * @param g the grain (trader) involved.
+     * @param order the amounts involved.
+     */
+    public static void trace(int type, Grain g, Order order) {
+        EventLog log = eventLog;
+        if (log != null) {
+            log.record(type, g, order);
+        }
+    } // trace(int,Grain,Order)
+
+    /** Traces an event carrying a single amount, if tracing is on.
+     * @param type one of the EventLog event types.
+     * @param g the grain involved, or null.
+     * @param amount the amount involved.
+     */
+    public static void trace(int type, Grain g, int amount) {
+        EventLog log = eventLog;
+        if (log != null) {
+            log.record(type, g, amount);
+        }
+    } // trace(int,Grain,int)
+
+    /** Ledger of every trade, or null if none is being kept. */
+    private static Ledger ledger;
+
+    /** Online conservation monitor, or null if none is running. */
+    private static ConservationMonitor monitor;
+
+    /** Notes that a brewer consumed "order" obtained from the "g" trader,
+     * in the ledger and the conservation monitor if there are any.
+     * @param g the trader the order came from.
+     * @param order the amounts consumed.
+     */
+    public static void consumed(Grain g, Order order) {
+        Ledger l = ledger;
+        if (l != null) {
+            l.append(Ledger.CONSUME, g, null, 0, order);
+        }
+        ConservationMonitor m = monitor;
+        if (m != null) {
+            m.consumed(order);
+        }
+    } // consumed(Grain,Order)
+
+    /** Returns the online conservation monitor.
+     * @return the monitor, or null if none is running.
+     */
+    static ConservationMonitor monitor() {
+        return monitor;
+    } // monitor()
+
+    /** Notes that the supplier produced n bushels of g, in the conservation
+     * monitor if there is one.
+     * @param g the grain.
+     * @param n the amount.
+     */
+    public static void produced(Grain g, int n) {
+        ConservationMonitor m = monitor;
+        if (m != null) {
+            m.produced(g, n);
+        }
+    } // produced(Grain,int)
+
+    /** Master random number generator.  Each actor gets its own stream,
+     * split from this one by newRandom(), so threads never share a
+     * generator and a fixed seed gives every actor the same sequence no
+     * matter how the threads interleave.
+     */
+    private static SplittableRandom rand;
+
+    /** The stream used by the current thread, installed by setRandom(). */
+    private static final ThreadLocal<SplittableRandom> threadRand =
+        new ThreadLocal<SplittableRandom>();
+
+    /** Splits a new, independent random stream off the master generator.
+     * Actors should call this from the main thread, in a fixed order, so that
+     * the streams they receive are reproducible.
+     * @return the new stream.
+     */
+    public static synchronized SplittableRandom newRandom() {
+        return rand.split();
+    } // newRandom()
+
+    /** Makes "r" the random stream used by randInt() in the current thread.
+     * @param r the stream.
+     */
+    public static void setRandom(SplittableRandom r) {
+        threadRand.set(r);
+    } // setRandom(SplittableRandom)
+
+    /** Returns the current thread's random stream, splitting a new one off
+     * the master generator if the thread has none yet.
+     * @return the stream.
+     */
+    private static SplittableRandom random() {
+        SplittableRandom r = threadRand.get();
+        if (r == null) {
+            r = newRandom();
+            threadRand.set(r);
+        }
+        return r;
+    } // random()
         
     /** Utility to generate a random non-negative integer less than max.
      * @param max integer one greater than the largest possible result.
@@ -72,7 +333,7 @@ public class P2 {
         if (0 >= max) {
             throw new IllegalArgumentException("randInt");
         }
-        return (rand.nextInt(max));
+        return (random().nextInt(max));
     } // randInt(int)
 
     /** Utility to generate a random integer between min and max (inclusive).
@@ -84,68 +345,122 @@ public class P2 {
         if (min >= max) {
             throw new IllegalArgumentException("randInt");
         }
-        return min + rand.nextInt(max - min + 1);
+        return min + random().nextInt(max - min + 1);
     } // randInt(int,int)
 
     /** Prints a usage message and terminates. */
     private static void usage() {
         err.println(
-            "usage: P2 [-v][-r] brewerCount iterations");
+            "usage: P2 [-v][-r][-l][-V][-a][-p fifo|smallest|deficit|aged]"
+            + "[-m metrics.csv][-t trace.bin][-L ledger][-C ms][-B capacity][-A]"
+            + "\n          [--zipf=s][--arrivals=uniform|poisson|bursty[:n]]"
+            + "[--interval=ms][--think=ms][--shards=k][--fulfil=whole|split]"
+            + "\n          [--exchange=swap|book][--suppliers=n[:specialized]]"
+            + "[--jfr=recording.jfr]"
+            + "\n          [--serve=port][--nodes=n][--connect=host:port]"
+            + "\n          [--order=uniform:min:max|fixed:n|geometric:mean]"
+            + "[--sweep=setting=v1,v2,...]..."
+            + "\n          brewerCount iterations"
+            + "\n  settings that can be swept: "
+            + String.join(", ", SWEEPABLE));
         exit(1);
     } // usage()
 
-    /** Main program for project 2.
-     * @param args the command-line arguments.
+    /** Applies one named setting, as given to a long option or --sweep.
+     * @param name the setting, one of SWEEPABLE.
+     * @param value its value.
+     * @throws IllegalArgumentException if either is invalid.
      */
-    public static void main(String[] args) {
-        // Parse command-line arguments
-        GetOpt options = new GetOpt("P2", args, "vr");
-        int opt;
-        while ((opt = options.nextOpt()) != -1) {
-            switch (opt) {
-            default:
-                usage();
-                break;
-            case 'v':
-                verbose = true;
-                break;
-            case 'r':
-                rand = new Random(0);
-                break;
+    private static void set(String name, String value) {
+        switch (name) {
+        case "brewers":
+            brewerCount = Integer.parseInt(value);
+            break;
+        case "iterations":
+            iterations = Integer.parseInt(value);
+            break;
+        case "shards":
+            int k = Integer.parseInt(value);
+            if (k <= 0) {
+                throw new IllegalArgumentException(value);
             }
+            shards = k;
+            break;
+        case "zipf":
+            workload.setZipf(Double.parseDouble(value));
+            break;
+        case "arrivals":
+            workload.setArrivals(value);
+            break;
+        case "interval":
+            workload.setInterval(Integer.parseInt(value));
+            break;
+        case "think":
+            workload.setThink(Integer.parseInt(value));
+            break;
+        case "order":
+            workload.setOrderSize(value);
+            break;
+        case "capacity":
+            capacity = Integer.parseInt(value);
+            break;
+        case "policy":
+            if (!Arrays.asList(FillPolicy.NAMES).contains(value)) {
+                throw new IllegalArgumentException(value);
+            }
+            policy = value;
+            break;
+        case "fulfil":
+            if (!value.equals("whole") && !value.equals("split")) {
+                throw new IllegalArgumentException(value);
+            }
+            split = value.equals("split");
+            break;
+        case "exchange":
+            if (!value.equals("swap") && !value.equals("book")) {
+                throw new IllegalArgumentException(value);
+            }
+            book = value.equals("book");
+            break;
+        case "suppliers":
+            String[] parts = value.split(":", 2);
+            int n = Integer.parseInt(parts[0]);
+            boolean spec = parts.length > 1;
+            if (n <= 0 || spec && (!parts[1].equals("specialized")
+                    || n < Grain.values().length)) {
+                // every grain needs a supplier
+                throw new IllegalArgumentException(value);
+            }
+            supplierCount = n;
+            specialized = spec;
+            break;
+        default:
+            throw new IllegalArgumentException(name);
         }
-        if (rand == null) {
-            rand = new Random();
-        }
-        if (options.optind != args.length - 2) {
-            usage();
-        }
-        brewerCount = Integer.parseInt(args[options.optind]);
-        int iterations = Integer.parseInt(args[options.optind + 1]);
+    } // set(String,String)
 
-        // Create Traders
-        traders = new EnumMap<Grain, Trader>(Grain.class);
-        for (Grain g : Grain.values()) {
-            traders.put(g, new TraderImpl(g));
+    /** Runs the suppliers and brewers, one platform thread each, and returns
+     * once they have all finished.
+     */
+    private static void runPlatform() {
+        Thread[] supplierThreads = new Thread[suppliers.length];
+        for (int k = 0; k < suppliers.length; k++) {
+            supplierThreads[k] = new Thread(suppliers[k],
+                suppliers.length == 1 ? "Supplier" : "Supplier" + k);
         }
 
-        // Create the unique Supplier
-        supplier = new Supplier(iterations);
-
-        Thread supplierThread = new Thread(supplier, "Supplier");
-
-        brewers = new Brewer[brewerCount];
         brewerThreads = new Thread[brewerCount];
         for (int i = 0; i < brewerCount; i++) {
-            brewers[i] = new Brewer();
             brewerThreads[i] = new Thread(brewers[i], "Brewer" + i);
         }
 
         // Start the threads running
         // They all have lower priority than the main thread so none of them
         // will run until we are done starting them all.
-        supplierThread.setPriority(Thread.NORM_PRIORITY - 1);
-        supplierThread.start();
+        for (Thread t : supplierThreads) {
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            t.start();
+        }
         for (Thread t : brewerThreads) {
             t.setPriority(Thread.NORM_PRIORITY - 1);
             t.start();
@@ -153,34 +468,251 @@ public class P2 {
 
         // Wait for all the threads to finish
         try {
-            // The supplier thread returns when it has completed the requested
-            // number of iterations.
-            supplierThread.join();
-
-            // Wait three seconds to give the brewers a chance to finish
-            // whatever they're doing, then kill them all off.
-            Thread.sleep(3000);
+            // The supplier threads return when they have completed the
+            // requested number of iterations.
+            for (Thread t : supplierThreads) {
+                t.join();
+            }
 
+            // Wait until the brewers have nothing left to do, then stop
+            // them all at once.
+            awaitQuiescence();
             for (Thread t : brewerThreads) {
-                System.out.println("Brewer Threads");
                 t.interrupt();
+            }
+            for (Thread t : brewerThreads) {
                 t.join();
             }
         } catch (InterruptedException e) {
             System.out.println("InterruptedException");
             e.printStackTrace();
         }
+    } // runPlatform()
 
-        // Display final state.
-        out.printf("**** Program terminating%n");
+    /** Waits, once the suppliers have finished, until no brewer can make
+     * any more progress, and notes how long that took.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void awaitQuiescence() throws InterruptedException {
+        long start = nanoTime();
+        new Quiescence(markets, brewers).await();
+        drainTime = nanoTime() - start;
+    } // awaitQuiescence()
 
+    /** Returns an executor that runs each task on a new virtual thread.
+     * Looked up reflectively so that P2 still compiles and runs (without -V)
+     * on JDKs that predate virtual threads.
+     * @return the executor.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            err.println("P2: -V requires a JDK with virtual threads (21+)");
+            exit(1);
+            return null;
+        }
+    } // newVirtualExecutor()
+
+    /** Runs the suppliers and brewers, one virtual thread each, and returns
+     * once they have all finished.  Brewers block only on java.util.concurrent
+     * locks and sleeps, neither of which pins the carrier thread.
+     */
+    private static void runVirtual() {
+        ExecutorService executor = newVirtualExecutor();
+        List<Future<?>> suppliersDone = new ArrayList<Future<?>>();
+        for (int k = 0; k < suppliers.length; k++) {
+            final Supplier s = suppliers[k];
+            final String name =
+                suppliers.length == 1 ? "Supplier" : "Supplier" + k;
+            suppliersDone.add(executor.submit(() -> {
+                Thread.currentThread().setName(name);
+                s.run();
+            }));
+        }
+        List<Future<?>> brewersDone = new ArrayList<Future<?>>();
+        for (int i = 0; i < brewerCount; i++) {
+            final int id = i;
+            brewersDone.add(executor.submit(() -> {
+                Thread.currentThread().setName("Brewer" + id);
+                brewers[id].run();
+            }));
+        }
+
+        try {
+            for (Future<?> f : suppliersDone) {
+                f.get();
+            }
+
+            // Wait until the brewers have nothing left to do, then
+            // interrupt them all at once, as runPlatform() does, and let
+            // each finish what it was doing.
+            awaitQuiescence();
+            for (Future<?> f : brewersDone) {
+                f.cancel(true);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException");
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    } // runVirtual()
+
+    /** Runs each supplier on its own thread and every brewer asynchronously
+     * on a scheduled pool with one thread per processor, and returns once
+     * the suppliers have finished and the pool has shut down.  Orders still
+     * outstanding at shutdown could not have been filled anyway.
+     */
+    private static void runAsync() {
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        Thread[] supplierThreads = new Thread[suppliers.length];
+        for (int k = 0; k < suppliers.length; k++) {
+            supplierThreads[k] = new Thread(suppliers[k],
+                suppliers.length == 1 ? "Supplier" : "Supplier" + k);
+            supplierThreads[k].start();
+        }
+        for (Brewer b : brewers) {
+            b.start(executor);
+        }
+
+        try {
+            for (Thread t : supplierThreads) {
+                t.join();
+            }
+
+            // Wait until the brewers have nothing left to do, then stop
+            // scheduling their steps.  Steps already queued still run, since
+            // one may be consuming an order that has been filled.
+            awaitQuiescence();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (Brewer b : brewers) {
+                b.stop();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException");
+            e.printStackTrace();
+        }
+    } // runAsync()
+
+    /** Prints latency percentiles and contention counts for every trader
+     * and for the brewers as a whole, and writes them to metricsFile as CSV
+     * if one was requested.
+     */
+    private static void reportMetrics() {
+        Histogram brewerWaits = new Histogram();
+        for (Brewer b : brewers) {
+            brewerWaits.addAll(b.getWaitTimes());
+        }
+        out.printf("Brewer requests: %s%n", brewerWaits);
+        for (Market m : markets) {
+            for (Grain g : Grain.values()) {
+                Trader t = m.specialist(g);
+                if (t instanceof TraderImpl) {
+                    ((TraderImpl) t).getMetrics().report(out, traderName(m, g));
+                }
+            }
+        }
+        if (metricsFile == null) {
+            return;
+        }
+        try (PrintStream csv = new PrintStream(metricsFile)) {
+            csv.println("trader,metric,count,p50_ns,p99_ns,p999_ns");
+            csv.printf("all,brewer_request,%s%n", brewerWaits.toCsv());
+            for (Market m : markets) {
+                for (Grain g : Grain.values()) {
+                    Trader t = m.specialist(g);
+                    if (t instanceof TraderImpl) {
+                        ((TraderImpl) t).getMetrics().writeCsv(csv,
+                            traderName(m, g));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            err.printf("P2: cannot write %s: %s%n", metricsFile, e);
+        }
+    } // reportMetrics()
+
+    /** Opens ledgerFile and has every TraderImpl record its trades there,
+     * with a checkpoint of each trader's inventory once a second.
+     * @return the executor running the checkpoints.
+     */
+    private static ScheduledExecutorService startLedger() {
+        try {
+            ledger = new Ledger(new File(ledgerFile).toPath());
+        } catch (IOException e) {
+            err.printf("P2: cannot open %s: %s%n", ledgerFile, e);
+            exit(1);
+        }
+        final List<TraderImpl> logged = new ArrayList<TraderImpl>();
+        for (Trader t : allTraders()) {
+            if (t instanceof TraderImpl) {
+                ((TraderImpl) t).setLedger(ledger);
+                logged.add((TraderImpl) t);
+            }
+        }
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        executor.scheduleAtFixedRate(() -> {
+            for (TraderImpl t : logged) {
+                t.checkpoint();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        return executor;
+    } // startLedger()
+
+    /** Writes a final checkpoint of every trader and closes the ledger. */
+    private static void stopLedger() {
+        for (Trader t : allTraders()) {
+            if (t instanceof TraderImpl) {
+                ((TraderImpl) t).checkpoint();
+                ((TraderImpl) t).setLedger(null);
+            }
+        }
+        try {
+            ledger.close();
+        } catch (IOException e) {
+            err.printf("P2: cannot write %s: %s%n", ledgerFile, e);
+        }
+        ledger = null;
+    } // stopLedger()
+
+    /** Prints the final conservation report: what was produced, what each
+     * brewer consumed, and the net excess (deficit) once the grain still held
+     * by traders is accounted for.
+     * @param production the total delivered by the supplier.
+     * @param onHand the amount held by each trader.
+     * @param consumption the amount consumed by each brewer.
+     */
+    static void report(Order production, Order[] onHand, Order[] consumption) {
+        report(production, onHand, consumption, new Order[0]);
+    } // report(Order,Order[],Order[])
+
+    /** Prints the final conservation report, counting grain shipped to the
+     * brewers of other processes as consumed.
+     * @param production the total delivered by the supplier.
+     * @param onHand the amount held by each trader.
+     * @param consumption the amount consumed by each brewer.
+     * @param shipped the amount handed to each remote node.
+     */
+    static void report(Order production, Order[] onHand, Order[] consumption,
+            Order[] shipped) {
         Order amt;
         Order balance = new Order();
         int produced = 0;
         int atTraders = 0;
         int consumed = 0;
 
-        amt = supplier.getProduction();
+        amt = production;
         out.printf("Produced %s%n", amt);
 
         for (Grain g : Grain.values()) {
@@ -189,8 +721,8 @@ public class P2 {
             produced += n;
         }
 
-        for (Grain g : Grain.values()) {
-            amt = traders.get(g).getAmountOnHand();
+        for (Order held : onHand) {
+            amt = held;
             for (Grain c1 : Grain.values()) {
                 int n = amt.get(c1);
                 balance.change(c1, -n);
@@ -198,8 +730,8 @@ public class P2 {
             }
         }
 
-        for (int i = 0; i < brewerCount; i++) {
-            amt = brewers[i].getConsumption();
+        for (int i = 0; i < consumption.length; i++) {
+            amt = consumption[i];
             out.printf("Brewer %d consumed %s%n", i, amt);
             for (Grain g : Grain.values()) {
                 int n = amt.get(g);
@@ -207,10 +739,619 @@ public class P2 {
                 consumed += n;
             }
         }
+        for (int i = 0; i < shipped.length; i++) {
+            amt = shipped[i];
+            out.printf("Node %d received %s%n", i + 1, amt);
+            for (Grain g : Grain.values()) {
+                int n = amt.get(g);
+                balance.change(g, -n);
+                consumed += n;
+            }
+        }
         out.printf("Net excess (deficit) is %s%n", balance);
         out.printf(
             "Total: produced = %d, consumed = %d,"
                     + " remaining at traders = %d, net = %d%n",
             produced, consumed, atTraders, (produced - consumed - atTraders));
+    } // report(Order,Order[],Order[],Order[])
+
+    /** Serves every trader on servePort and, for --nodes, starts the other
+     * processes, each running brewerCount brewers against this server.
+     * @return the processes started.
+     */
+    private static List<Process> startServer() {
+        List<TraderImpl> hosted = new ArrayList<TraderImpl>();
+        for (Trader t : allTraders()) {
+            hosted.add((TraderImpl) t);
+        }
+        try {
+            server = new TraderServer(hosted, Grain.values().length, servePort);
+        } catch (IOException e) {
+            err.printf("P2: cannot serve on port %d: %s%n", servePort, e);
+            exit(1);
+        }
+        server.start();
+        out.printf("P2: serving %d traders on port %d%n",
+            hosted.size(), server.getPort());
+
+        List<Process> children = new ArrayList<Process>();
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(new File(getProperty("java.home"), "bin/java").getPath());
+        cmd.add("-cp");
+        cmd.add(getProperty("java.class.path"));
+        cmd.add("P2");
+        cmd.add("--connect=127.0.0.1:" + server.getPort());
+        for (int i = 0; i < argv.length - 2; i++) {
+            String a = argv[i];
+            if (a.startsWith("--serve") || a.startsWith("--nodes")
+                    || a.startsWith("--jfr")) {
+                if (a.indexOf('=') < 0) {
+                    i++;
+                }
+                continue;
+            }
+            cmd.add(a);
+        }
+        cmd.add(Integer.toString(brewerCount));
+        cmd.add("0");
+        for (int n = 1; n < nodes; n++) {
+            try {
+                children.add(new ProcessBuilder(cmd).inheritIO().start());
+            } catch (IOException e) {
+                err.printf("P2: cannot start node: %s%n", e);
+            }
+        }
+        return children;
+    } // startServer()
+
+    /** Ends the run for the remote nodes and stops serving.
+     * @param children the processes started by startServer().
+     * @return what was handed to each remote node.
+     */
+    private static Order[] stopServer(List<Process> children) {
+        try {
+            server.shutdown(10000);
+            for (Process p : children) {
+                p.waitFor();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Order[] shipped = server.shipped();
+        server = null;
+        return shipped;
+    } // stopServer(List)
+
+    /** Runs this process as a remote node: brewerCount brewers trading with
+     * the market at "connect" until its server ends the run, followed by a
+     * report of what they consumed.
+     */
+    private static void runNode() {
+        int colon = connect.lastIndexOf(':');
+        RemoteMarket remote = null;
+        try {
+            remote = new RemoteMarket(connect.substring(0, colon),
+                Integer.parseInt(connect.substring(colon + 1)));
+            int node = remote.node();
+            Market m = new Market(0, remote.traders());
+            brewers = new Brewer[brewerCount];
+            brewerThreads = new Thread[brewerCount];
+            for (int i = 0; i < brewerCount; i++) {
+                brewers[i] = new Brewer(m);
+                brewerThreads[i] = new Thread(brewers[i], "Node" + node + "Brewer" + i);
+            }
+            for (Thread t : brewerThreads) {
+                t.start();
+            }
+            remote.awaitShutdown();
+            for (Thread t : brewerThreads) {
+                t.interrupt();
+                t.join();
+            }
+            Order total = new Order();
+            Histogram waits = new Histogram();
+            for (Brewer b : brewers) {
+                total.addAll(b.getConsumption(new Order()));
+                waits.addAll(b.getWaitTimes());
+            }
+            out.printf("Node %d: %d brewers consumed %s%n", node, brewerCount, total);
+            out.printf("Node %d requests: %s%n", node, waits);
+        } catch (IOException e) {
+            err.printf("P2: cannot connect to %s: %s%n", connect, e);
+            exit(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            if (remote != null) {
+                try {
+                    remote.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    } // runNode()
+
+    /** Prints one market's share of the run: what its supplier produced,
+     * what its brewers consumed and how fast, and what its traders hold.
+     * With stealing, grain moves between markets, so a single market's
+     * books need not balance; only the totals over all markets must.
+     * @param m the market.
+     */
+    private static void reportMarket(Market m) {
+        int produced = Supplier.getProduction(m.suppliers, new Order()).total();
+        int held = 0;
+        for (Trader t : m.traders.values()) {
+            held += t.snapshot(new Order()).total();
+        }
+        int consumed = 0;
+        Histogram waits = new Histogram();
+        for (Brewer b : m.brewers) {
+            consumed += b.getConsumption(new Order()).total();
+            waits.addAll(b.getWaitTimes());
+        }
+        out.printf("Market %d: %d brewers, produced = %d, consumed = %d,"
+                + " remaining at traders = %d, imported = %d%n",
+            m.id, m.brewers.size(), produced, consumed, held,
+            consumed + held - produced);
+        out.printf("Market %d requests: %s%n", m.id, waits);
+    } // reportMarket(Market)
+
+    /** Main program for project 2.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) {
+        // Parse command-line arguments
+        GetOpt options =
+            new GetOpt("P2", args, "vrlVap:m:t:L:C:B:A", LONG_OPTIONS);
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'v':
+                verbose = true;
+                break;
+            case 'r':
+                seed = 0;
+                break;
+            case 'l':
+                lockFree = true;
+                break;
+            case 'V':
+                virtual = true;
+                break;
+            case 'a':
+                async = true;
+                break;
+            case 't':
+                traceFile = options.optarg;
+                break;
+            case 'J':
+                jfrFile = options.optarg;
+                break;
+            case 'B':
+                capacity = Integer.parseInt(options.optarg);
+                break;
+            case 'A':
+                adaptive = true;
+                break;
+            case 'C':
+                monitorPeriod = Long.parseLong(options.optarg);
+                break;
+            case 'L':
+                ledgerFile = options.optarg;
+                break;
+            case 'm':
+                metricsFile = options.optarg;
+                break;
+            case 'p':
+                policyGiven = true;
+                policy = options.optarg;
+                if (!Arrays.asList(FillPolicy.NAMES).contains(policy)) {
+                    usage();
+                }
+                break;
+            case 'E':
+                servePort = Integer.parseInt(options.optarg);
+                break;
+            case 'N':
+                nodes = Integer.parseInt(options.optarg);
+                if (nodes < 1) {
+                    usage();
+                }
+                break;
+            case 'X':
+                connect = options.optarg;
+                if (connect.lastIndexOf(':') < 0) {
+                    usage();
+                }
+                break;
+            case 'S':
+                String[] kv = options.optarg.split("=", 2);
+                if (kv.length != 2
+                        || !Arrays.asList(SWEEPABLE).contains(kv[0])) {
+                    usage();
+                }
+                String[] values = kv[1].split(",");
+                String[] dim = new String[values.length + 1];
+                dim[0] = kv[0];
+                System.arraycopy(values, 0, dim, 1, values.length);
+                sweep.add(dim);
+                break;
+            case 'z':
+            case 'P':
+            case 'I':
+            case 'T':
+            case 'O':
+            case 'K':
+            case 'F':
+            case 'x':
+            case 'U':
+                try {
+                    set(LONG_OPTIONS[options.longind].name, options.optarg);
+                } catch (IllegalArgumentException e) {
+                    err.printf("P2: bad --%s: %s%n",
+                        LONG_OPTIONS[options.longind].name, options.optarg);
+                    usage();
+                }
+                break;
+            }
+        }
+        if (options.optind != args.length - 2) {
+            usage();
+        }
+        if (!sweep.isEmpty() && (verbose || traceFile != null
+                || ledgerFile != null || metricsFile != null)) {
+            err.println("P2: --sweep cannot be combined with -v, -t, -L or -m");
+            usage();
+        }
+        if ((servePort >= 0 || nodes > 1 || connect != null)
+                && (lockFree || !sweep.isEmpty())) {
+            err.println("P2: remote traders cannot be combined with -l or --sweep");
+            usage();
+        }
+        if (book || sweeps("exchange")) {
+            if (lockFree || async || split || sweeps("fulfil")
+                    || ledgerFile != null || monitorPeriod > 0
+                    || capacity != Integer.MAX_VALUE || sweeps("capacity")
+                    || servePort >= 0 || nodes > 1 || connect != null) {
+                // A BookExchange has no TraderImpls to watch or serve, and
+                // its get() waits on a thread of its own.
+                err.println("P2: --exchange=book cannot be combined with -l, -a,"
+                    + " -L, -C, -B, --fulfil=split or remote traders");
+                usage();
+            }
+        }
+        if (nodes > 1 && servePort < 0) {
+            servePort = 0;
+        }
+        if ((policyGiven || sweeps("policy"))
+                && (lockFree || !(async || split || sweeps("fulfil")
+                    || servePort >= 0))) {
+            // Only orders queued by TraderImpl.getAsync() are ranked.
+            err.println("P2: warning: -p has no effect without -a,"
+                + " --fulfil=split or --serve, or with -l");
+        }
+        if (monitorPeriod > 0 && lockFree) {
+            // Only TraderImpls report their holdings to the monitor.
+            err.println("P2: -C cannot be combined with -l");
+            usage();
+        }
+        if (ledgerFile != null && shards > 1) {
+            // Ledger records name traders by grain alone.
+            err.println("P2: -L cannot be combined with --shards");
+            usage();
+        }
+        if (traceFile != null) {
+            try {
+                eventLog = new EventLog(new FileOutputStream(traceFile), 1 << 16);
+            } catch (IOException e) {
+                err.printf("P2: cannot write %s: %s%n", traceFile, e);
+                exit(1);
+            }
+        } else if (verbose) {
+            eventLog = new EventLog(out, 1 << 16);
+        }
+        brewerCount = Integer.parseInt(args[options.optind]);
+        iterations = Integer.parseInt(args[options.optind + 1]);
+        argv = args;
+        if (jfrFile != null) {
+            startRecording();
+        }
+
+        if (connect != null) {
+            rand = seed < 0 ? new SplittableRandom() : new SplittableRandom(seed);
+            runNode();
+        } else if (sweep.isEmpty()) {
+            rand = seed < 0 ? new SplittableRandom() : new SplittableRandom(seed);
+            runOnce(true);
+        } else {
+            runSweep();
+        }
+        if (recording != null) {
+            stopRecording();
+        }
     } // main(String[])
+
+    /** Starts a Flight Recorder recording with the JDK's default settings,
+     * which enable the events of TraderEvents at their own thresholds.
+     */
+    private static void startRecording() {
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (IOException | java.text.ParseException e) {
+            err.printf("P2: cannot start a flight recording: %s%n", e);
+            exit(1);
+        }
+        recording.setName("P2");
+        recording.start();
+    } // startRecording()
+
+    /** Stops the recording and writes it to jfrFile. */
+    private static void stopRecording() {
+        recording.stop();
+        try {
+            recording.dump(new File(jfrFile).toPath());
+            out.printf("Flight recording written to %s%n", jfrFile);
+        } catch (IOException e) {
+            err.printf("P2: cannot write %s: %s%n", jfrFile, e);
+        }
+        recording.close();
+    } // stopRecording()
+
+    /** Indicates whether --sweep varies a setting.
+     * @param name the setting.
+     * @return true if it is swept.
+     */
+    private static boolean sweeps(String name) {
+        for (String[] dim : sweep) {
+            if (dim[0].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    } // sweeps(String)
+
+    /** Runs every combination of the settings in "sweep", one after
+     * another, printing one line of throughput and latency for each.  With
+     * -r every run starts from the same seed.
+     */
+    private static void runSweep() {
+        int[] at = new int[sweep.size()];
+        StringBuilder head = new StringBuilder();
+        for (String[] dim : sweep) {
+            head.append(String.format("%-11s ", dim[0]));
+        }
+        out.printf("%s%8s %8s %9s %10s %9s %9s%n", head,
+            "secs", "orders", "orders/s", "bushels/s", "p50 ms", "p99 ms");
+        for (;;) {
+            StringBuilder row = new StringBuilder();
+            for (int d = 0; d < at.length; d++) {
+                String[] dim = sweep.get(d);
+                try {
+                    set(dim[0], dim[1 + at[d]]);
+                } catch (IllegalArgumentException e) {
+                    err.printf("P2: bad --sweep value %s=%s%n",
+                        dim[0], dim[1 + at[d]]);
+                    exit(1);
+                }
+                row.append(String.format("%-11s ", dim[1 + at[d]]));
+            }
+            rand = seed < 0 ? new SplittableRandom() : new SplittableRandom(seed);
+            verbose = false;
+            long start = nanoTime();
+            runOnce(false);
+            double secs = (nanoTime() - start) / 1e9;
+
+            Histogram waits = new Histogram();
+            long bushels = 0;
+            for (Brewer b : brewers) {
+                waits.addAll(b.getWaitTimes());
+                bushels += b.getConsumption(new Order()).total();
+            }
+            out.printf("%s%8.2f %8d %9.1f %10.1f %9.2f %9.2f%n", row, secs,
+                waits.count(), waits.count() / secs, bushels / secs,
+                waits.percentile(0.50) / 1e6, waits.percentile(0.99) / 1e6);
+
+            // Advance to the next combination, the last setting fastest.
+            int d = at.length - 1;
+            while (d >= 0 && ++at[d] == sweep.get(d).length - 1) {
+                at[d--] = 0;
+            }
+            if (d < 0) {
+                return;
+            }
+        }
+    } // runSweep()
+
+    /** Builds a market with the current settings, runs it to completion
+     * and, if "report" is true, prints the full end-of-run report.
+     * @param report if true, print the conservation report and metrics.
+     */
+    private static void runOnce(boolean report) {
+        monitor = null;
+
+        // Create the markets and their Traders
+        markets = new Market[shards];
+        for (int k = 0; k < shards; k++) {
+            EnumMap<Grain, Trader> traders = new EnumMap<Grain, Trader>(Grain.class);
+            BookExchange exchange = null;
+            if (book) {
+                exchange = new BookExchange((brewerCount + shards - 1) / shards);
+                traders = exchange.traders();
+            } else {
+                for (Grain g : Grain.values()) {
+                    traders.put(g,
+                        lockFree ? new LockFreeTraderImpl(g)
+                            : new TraderImpl(g, FillPolicy.forName(policy)));
+                }
+            }
+            markets[k] = new Market(k, traders);
+            markets[k].exchange = exchange;
+        }
+        Market.link(markets);
+        if (monitorPeriod > 0) {
+            monitor = new ConservationMonitor();
+            for (Trader t : allTraders()) {
+                if (t instanceof TraderImpl) {
+                    ((TraderImpl) t).setMonitor(monitor);
+                }
+            }
+            monitor.start(monitorPeriod);
+        }
+        ScheduledExecutorService checkpointer = null;
+        if (ledgerFile != null) {
+            checkpointer = startLedger();
+        }
+        for (Market m : markets) {
+            for (Trader t : m.traders.values()) {
+                if (t instanceof TraderImpl) {
+                    ((TraderImpl) t).setNegotiator(m.negotiator);
+                    ((TraderImpl) t).setCapacity(capacity);
+                } else if (t instanceof LockFreeTraderImpl) {
+                    ((LockFreeTraderImpl) t).setNegotiator(m.negotiator);
+                }
+            }
+        }
+
+        // Create the Suppliers, sharing out the iterations
+        int total = shards * supplierCount;
+        suppliers = new Supplier[total];
+        for (int i = 0; i < total; i++) {
+            Market m = markets[i % shards];
+            suppliers[i] = new Supplier(
+                iterations / total + (i < iterations % total ? 1 : 0), m);
+            suppliers[i].setAdaptive(adaptive);
+            if (specialized) {
+                suppliers[i].setSpecialty(
+                    Grain.values()[(i / shards) % Grain.values().length]);
+            }
+            m.suppliers.add(suppliers[i]);
+        }
+
+        brewers = new Brewer[brewerCount];
+        for (int i = 0; i < brewerCount; i++) {
+            Market m = markets[i % shards];
+            brewers[i] = new Brewer(m);
+            m.brewers.add(brewers[i]);
+        }
+
+        List<Process> children = null;
+        if (servePort >= 0) {
+            children = startServer();
+        }
+
+        if (async) {
+            runAsync();
+        } else if (virtual) {
+            runVirtual();
+        } else {
+            runPlatform();
+        }
+        // Requests still waiting in Trader.getAsync()'s default
+        // implementation will never be filled now.
+        BlockingGets.cancelAll();
+
+        Order[] shipped = new Order[0];
+        if (server != null) {
+            shipped = stopServer(children);
+        }
+
+        if (monitor != null) {
+            try {
+                monitor.stop();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            monitor.sample();
+            out.println(monitor.stats());
+        }
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            stopLedger();
+        }
+        if (eventLog != null) {
+            // Events traced from now on are ignored, not counted as dropped.
+            EventLog log = eventLog;
+            eventLog = null;
+            try {
+                log.close();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (log.getDropped() > 0) {
+                out.printf("Trace dropped %d events%n", log.getDropped());
+            }
+            if (log.getErrors() > 0) {
+                err.printf("P2: %d writes to %s failed: %s%n",
+                    log.getErrors(), traceFile, log.getFailure());
+            }
+        }
+
+        if (!report) {
+            return;
+        }
+
+        // Display final state.
+        out.printf("**** Program terminating%n");
+
+        List<Trader> all = allTraders();
+        Order[] onHand = new Order[all.size()];
+        for (int t = 0; t < onHand.length; t++) {
+            onHand[t] = all.get(t).snapshot(new Order());
+        }
+        Order[] consumption = new Order[brewerCount];
+        for (int i = 0; i < brewerCount; i++) {
+            consumption[i] = brewers[i].getConsumption(new Order());
+        }
+        Order production =
+            Supplier.getProduction(Arrays.asList(suppliers), new Order());
+        report(production, onHand, consumption, shipped);
+        out.printf("Quiescent %.3f s after the last delivery%n", drainTime / 1e9);
+        if (shards > 1) {
+            for (Market m : markets) {
+                reportMarket(m);
+            }
+        }
+        for (Market m : markets) {
+            String prefix = shards == 1 ? "" : "Market " + m.id + " ";
+            if (m.exchange != null) {
+                out.printf("%sorder books: trades = %d%n",
+                    prefix, m.exchange.trades());
+            } else {
+                out.println(prefix + m.negotiator.stats());
+            }
+            if (capacity != Integer.MAX_VALUE) {
+                int stalls = 0;
+                for (Supplier s : m.suppliers) {
+                    stalls += s.getStalls();
+                }
+                int peak = 0;
+                int excess = 0;
+                for (Trader t : m.traders.values()) {
+                    if (t instanceof TraderImpl) {
+                        peak = Math.max(peak,
+                            ((TraderImpl) t).peakOvershoot());
+                        excess = Math.max(excess,
+                            ((TraderImpl) t).peakExcess());
+                    }
+                }
+                out.printf("%scapacity %d: suppliers stalled %d times,"
+                    + " peak overshoot = %d bushels by a delivery,"
+                    + " %d with grain swapped in%n",
+                    prefix, capacity, stalls, peak, excess);
+            }
+        }
+        reportMetrics();
+        if (async && !lockFree) {
+            for (Market m : markets) {
+                for (Grain g : Grain.values()) {
+                    out.printf("%s trader %s%n", traderName(m, g),
+                        ((TraderImpl) m.specialist(g)).getFillPolicy().stats());
+                }
+            }
+        }
+    } // runOnce(boolean)
 } // P2
@@ -0,0 +1,56 @@
+import java.util.concurrent.CompletableFuture;
+
+/** An order passed to Trader.getAsync() that is waiting to be filled, with
+ * the bookkeeping a FillPolicy needs to rank it.
+ */
+public class PendingOrder {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** The order itself. */
+    final Order order;
+
+    /** The future to complete once the order is filled. */
+    final CompletableFuture<Order> future = new CompletableFuture<Order>();
+
+    /** Arrival sequence number at the trader. */
+    final long seq;
+
+    /** System.nanoTime() when the order was queued. */
+    final long queuedAt;
+
+    /** Total number of bushels in the order. */
+    final int size;
+
+    /** Bushels the trader was short of when the order was queued. */
+    final int deficit;
+
+    /** The first grain the trader was short of for this order when its
+     * policy last looked, on arrival or during a fill, or null if none.
+     * Set only by the FillPolicy, with the trader's lock held.
+     */
+    Grain shortOf;
+
+    /** The policy's sort key, set by FillPolicy.add(). */
+    long rank;
+
+    /** Creates a PendingOrder.
+     * @param order the order.
+     * @param seq the arrival sequence number.
+     * @param onHand the trader's inventory when the order arrived.
+     */
+    PendingOrder(Order order, long seq, Order onHand) {
+        this.order = order;
+        this.seq = seq;
+        this.queuedAt = System.nanoTime();
+        int s = 0;
+        int d = 0;
+        for (Grain g : Grain.values()) {
+            int n = order.get(g);
+            s += n;
+            d += Math.max(0, n - onHand.get(g));
+        }
+        this.size = s;
+        this.deficit = d;
+    } // PendingOrder(Order,long,Order)
+} // PendingOrder
@@ -0,0 +1,99 @@
+/** Decides when a P2 run has no more work to do, so that it can be shut
+ * down at once instead of after a fixed grace period.
+ * <p>
+ * Once the suppliers have finished, no grain enters the market, and the
+ * run is over when
+ * <ul>
+ * <li>every brewer is waiting for an order (none is thinking, and so about
+ *     to make a new request, or consuming),
+ * <li>no waiting order is covered by its trader's current inventory, and
+ * <li>no swap or steal is under way,
+ * </ul>
+ * and this has held, with no order filled and no grain swapped, for
+ * SETTLE consecutive polls.  The last condition catches orders that could
+ * still be filled by swapping, since a trader negotiates again as soon as
+ * grain it could swap for, or pay with, arrives.  The brewers can then all
+ * be stopped together, none of them in the middle of an order.
+ */
+public class Quiescence {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Time between polls, in milliseconds. */
+    private static final long POLL = 10;
+
+    /** Number of consecutive quiet polls needed. */
+    private static final int SETTLE = 5;
+
+    private final Market[] markets;
+    private final Brewer[] brewers;
+
+    /** Scratch space for trader snapshots. */
+    private final Order onHand = new Order();
+
+    /** Creates a coordinator for a run.
+     * @param markets the markets.
+     * @param brewers every brewer in them.
+     */
+    public Quiescence(Market[] markets, Brewer[] brewers) {
+        this.markets = markets;
+        this.brewers = brewers;
+    } // Quiescence(Market[],Brewer[])
+
+    /** Returns a count that grows whenever an order is filled or grain is
+     * swapped or stolen.
+     * @return the count.
+     */
+    private long progress() {
+        long p = 0;
+        for (Brewer b : brewers) {
+            p += b.getWaitTimes().count();
+        }
+        for (Market m : markets) {
+            p += m.negotiator.moved();
+        }
+        return p;
+    } // progress()
+
+    /** Indicates whether the run looks finished right now.
+     * @return true if every brewer is waiting for an order its trader
+     *         cannot fill and no swap is under way.
+     */
+    private boolean idle() {
+        for (Market m : markets) {
+            if (m.negotiator.busy()) {
+                return false;
+            }
+        }
+        for (Brewer b : brewers) {
+            Trader t = b.waitingAt();
+            if (t == null) {
+                return false;
+            }
+            Order o = b.waitingFor();
+            if (o == null || t.snapshot(onHand).covers(o)) {
+                return false;
+            }
+        }
+        return true;
+    } // idle()
+
+    /** Waits until the run is finished.  Must be called after the
+     * suppliers have finished.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        long last = -1;
+        int quiet = 0;
+        while (quiet < SETTLE) {
+            Thread.sleep(POLL);
+            long p = progress();
+            if (idle() && p == last) {
+                quiet++;
+            } else {
+                quiet = 0;
+            }
+            last = p;
+        }
+    } // await()
+} // Quiescence
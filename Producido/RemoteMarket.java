@@ -0,0 +1,192 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.EnumMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A connection to a TraderServer, shared by the RemoteTrader proxies for
+ * the traders it serves.
+ * <p>
+ * Requests from any number of threads are written to the one socket as soon
+ * as they are made, without waiting for earlier replies, so calls from
+ * different brewers are pipelined.  A reader thread matches each reply to
+ * its request by id and completes the request's future.
+ */
+public class RemoteMarket implements Closeable {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    private final SocketChannel channel;
+
+    /** Futures of the requests awaiting replies, by id. */
+    private final ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>> calls =
+        new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+
+    /** Next request id; 0 is reserved for pushes. */
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /** Completed by the server's HELLO with {node, market}. */
+    private final CompletableFuture<int[]> hello = new CompletableFuture<int[]>();
+
+    /** Completed when the server pushes SHUTDOWN or the connection drops. */
+    private final CompletableFuture<Void> shutdown = new CompletableFuture<Void>();
+
+    /** Connects to a server.
+     * @param host the server's host.
+     * @param port the server's port.
+     * @throws IOException if the connection fails.
+     */
+    public RemoteMarket(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        Thread reader = new Thread(this::readReplies, "RemoteMarket reader");
+        reader.setDaemon(true);
+        reader.start();
+    } // RemoteMarket(String,int)
+
+    /** Returns the node number the server assigned to this connection.
+     * @return the node number, from 1.
+     * @throws InterruptedException if interrupted while waiting for it.
+     */
+    public int node() throws InterruptedException {
+        return greeting()[0];
+    } // node()
+
+    /** Returns proxies for the traders of the market this node was assigned.
+     * @return the proxies, one for each grain.
+     * @throws InterruptedException if interrupted while waiting for the
+     *         assignment.
+     */
+    public EnumMap<Grain, Trader> traders() throws InterruptedException {
+        int base = greeting()[1] * Grain.values().length;
+        EnumMap<Grain, Trader> t = new EnumMap<Grain, Trader>(Grain.class);
+        for (Grain g : Grain.values()) {
+            t.put(g, new RemoteTrader(this, base + g.ordinal(), g));
+        }
+        return t;
+    } // traders()
+
+    /** Waits for the server's HELLO. */
+    private int[] greeting() throws InterruptedException {
+        try {
+            return hello.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("no HELLO from server", e.getCause());
+        }
+    } // greeting()
+
+    /** Waits until the server ends the run.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitShutdown() throws InterruptedException {
+        try {
+            shutdown.get();
+        } catch (ExecutionException e) {
+            // connection lost: also the end of the run
+        }
+    } // awaitShutdown()
+
+    /** Allocates a request id.
+     * @return the id.
+     */
+    long newId() {
+        return nextId.getAndIncrement();
+    } // newId()
+
+    /** Sends a request frame made by TraderProtocol.request().
+     * @param id the request id.
+     * @param frame the frame, positioned at its end.
+     * @return a future completed with the reply, positioned after the id
+     *         (at the status byte).
+     */
+    CompletableFuture<ByteBuffer> call(long id, ByteBuffer frame) {
+        CompletableFuture<ByteBuffer> f = new CompletableFuture<ByteBuffer>();
+        calls.put(id, f);
+        send(frame);
+        return f;
+    } // call(long,ByteBuffer)
+
+    /** Sends a frame that has no reply.
+     * @param frame the frame, positioned at its end.
+     */
+    void send(ByteBuffer frame) {
+        frame.flip();
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            failAll(e);
+        }
+    } // send(ByteBuffer)
+
+    /** Forgets a request whose reply is no longer wanted.
+     * @param id the request id.
+     */
+    void forget(long id) {
+        calls.remove(id);
+    } // forget(long)
+
+    /** Reads replies until the connection closes. */
+    private void readReplies() {
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                ByteBuffer frame;
+                while ((frame = TraderProtocol.nextFrame(in)) != null) {
+                    dispatch(frame);
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+                }
+            }
+            failAll(new IOException("connection closed by server"));
+        } catch (IOException | RuntimeException e) {
+            failAll(e);
+        }
+    } // readReplies()
+
+    /** Hands one reply or push to whoever is waiting for it. */
+    private void dispatch(ByteBuffer frame) {
+        long id = frame.getLong();
+        if (id != 0) {
+            CompletableFuture<ByteBuffer> f = calls.remove(id);
+            if (f != null) {
+                f.complete(frame);
+            }
+            return;
+        }
+        byte type = frame.get();
+        if (type == TraderProtocol.HELLO) {
+            hello.complete(new int[] { frame.getInt(), frame.getInt() });
+        } else if (type == TraderProtocol.SHUTDOWN) {
+            shutdown.complete(null);
+        }
+    } // dispatch(ByteBuffer)
+
+    /** Fails every outstanding request after the connection is lost. */
+    private void failAll(Throwable e) {
+        hello.completeExceptionally(e);
+        shutdown.completeExceptionally(e);
+        for (Long id : calls.keySet()) {
+            CompletableFuture<ByteBuffer> f = calls.remove(id);
+            if (f != null) {
+                f.completeExceptionally(e);
+            }
+        }
+    } // failAll(Throwable)
+
+    /** Closes the connection.
+     * @throws IOException if closing fails.
+     */
+    public void close() throws IOException {
+        channel.close();
+    } // close()
+} // RemoteMarket
@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/** A Trader in another process, reached through a RemoteMarket.
+ * <p>
+ * Each call sends one request and, except for getAsync(), waits for its
+ * reply; calls from different threads share the connection and overlap.
+ * A get() interrupted while waiting asks the server to cancel the order;
+ * if it was filled in the meantime, the server has already counted it as
+ * shipped to this node.
+ */
+public class RemoteTrader implements Trader {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    private final RemoteMarket market;
+
+    /** This trader's index on the server. */
+    private final int index;
+
+    /** This trader's specialty. */
+    public final Grain primary;
+
+    /** Creates a proxy.
+     * @param market the connection to the server.
+     * @param index the trader's index on the server.
+     * @param primary the trader's specialty.
+     */
+    RemoteTrader(RemoteMarket market, int index, Grain primary) {
+        this.market = market;
+        this.index = index;
+        this.primary = primary;
+    } // RemoteTrader(RemoteMarket,int,Grain)
+
+    /** Checks a reply's status.
+     * @param reply the reply, positioned at the status.
+     * @return the reply, positioned after the status.
+     * @throws CompletionException if the request did not succeed.
+     */
+    private static ByteBuffer ok(ByteBuffer reply) {
+        byte status = reply.get();
+        if (status == TraderProtocol.CANCELLED) {
+            throw new CancellationException();
+        }
+        if (status != TraderProtocol.OK) {
+            throw new CompletionException(
+                new IllegalStateException("remote trader failed"));
+        }
+        return reply;
+    } // ok(ByteBuffer)
+
+    /** Waits for a reply.
+     * @param f the reply's future.
+     * @return the reply, positioned after the status.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> f)
+            throws InterruptedException {
+        try {
+            return ok(f.get());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("remote trader unavailable",
+                e.getCause());
+        }
+    } // await(CompletableFuture)
+
+    /** Reports on the total amount of resources held by the remote Trader.
+     * @return an indication of the amount of each type of grain stocked.
+     */
+    public Order getAmountOnHand() {
+        return snapshot(new Order());
+    } // getAmountOnHand()
+
+    /** Copies the remote Trader's inventory into "into".
+     * @param into the Order to fill in.
+     * @return into.
+     */
+    public Order snapshot(Order into) {
+        long id = market.newId();
+        ByteBuffer req = TraderProtocol.request(id, TraderProtocol.AMOUNT, index, 0);
+        try {
+            TraderProtocol.getOrder(await(market.call(id, req)), into);
+        } catch (InterruptedException e) {
+            market.forget(id);
+            Thread.currentThread().interrupt();
+        }
+        return into;
+    } // snapshot(Order)
+
+    /** Sends a GET request.
+     * @param id the request id.
+     * @param order the order.
+     * @return the reply's future.
+     */
+    private CompletableFuture<ByteBuffer> sendGet(long id, Order order) {
+        ByteBuffer req = TraderProtocol.request(id, TraderProtocol.GET, index,
+            TraderProtocol.orderSize(order));
+        TraderProtocol.putOrder(req, order);
+        return market.call(id, req);
+    } // sendGet(long,Order)
+
+    /** A request from a brewer.
+     * The caller is blocked until the remote Trader has filled the request.
+     * @param order the number of bushels needed of each type of grain.
+     * @throws InterruptedException if the current thread is interrupted while
+     *            waiting for the order to be filled.
+     */
+    public void get(Order order) throws InterruptedException {
+        long id = market.newId();
+        CompletableFuture<ByteBuffer> f = sendGet(id, order);
+        try {
+            await(f);
+        } catch (InterruptedException e) {
+            market.send(TraderProtocol.request(id, TraderProtocol.CANCEL, index, 0));
+            throw e;
+        }
+    } // get(Order)
+
+    /** A request from a brewer that does not block the caller.
+     * @param order the number of bushels needed of each type of grain.
+     * @return a future completed with order when it has been filled.
+     */
+    public CompletableFuture<Order> getAsync(final Order order) {
+        final long id = market.newId();
+        CompletableFuture<Order> result =
+            sendGet(id, order).thenApply(r -> { ok(r); return order; });
+        result.whenComplete((o, e) -> {
+            if (e instanceof CancellationException) {
+                market.send(TraderProtocol.request(id, TraderProtocol.CANCEL, index, 0));
+            }
+        });
+        return result;
+    } // getAsync(Order)
+
+    /** Swaps grain with the remote Trader.
+     * @param what the type of grain to give it.
+     * @param amt the number of bushels to swap.
+     * @throws InterruptedException if the current thread is interrupted while
+     *            waiting for the swap to succeed.
+     */
+    public void swap(Grain what, int amt) throws InterruptedException {
+        long id = market.newId();
+        ByteBuffer req = TraderProtocol.request(id, TraderProtocol.SWAP, index, 5);
+        req.put((byte) what.ordinal()).putInt(amt);
+        await(market.call(id, req));
+    } // swap(Grain,int)
+
+    /** Delivers grain to the remote Trader.
+     * @param amt the number of bushels of its specialty being delivered.
+     * @throws InterruptedException if the current thread is interrupted while
+     *            waiting for the delivery to be accepted.
+     */
+    public void deliver(int amt) throws InterruptedException {
+        long id = market.newId();
+        ByteBuffer req = TraderProtocol.request(id, TraderProtocol.DELIVER, index, 4);
+        req.putInt(amt);
+        await(market.call(id, req));
+    } // deliver(int)
+} // RemoteTrader
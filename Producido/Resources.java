@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** A catalogue of resource types: the names of the entries of an Order.
+ * <p>
+ * Resource i of a catalogue is entry i of every Order made for it, and
+ * Orders for different catalogues cannot be combined.  The default
+ * catalogue, GRAINS, lists the Grain values in declaration order, so
+ * Order's Grain methods and its index methods agree.  Other catalogues are
+ * data: read from a file, one name per line, or generated.
+ * <p>
+  * Only Orders are generalized.  Traders, markets, suppliers, the ledger,
+ * EventLog, TraderProtocol and the monitors are still keyed by Grain and
+ * work with GRAINS alone.  Other catalogues are for Orders used on their
+ * own, as in OrderBench; no market over them exists.
+ */
+public class Resources {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** The four grains, in Grain.ordinal() order. */
+    public static final Resources GRAINS = grains();
+
+    /** The resource names, indexed by id. */
+    private final String[] names;
+
+    /** Map from name to id. */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** Creates a catalogue.
+     * @param names the resource names, in id order.
+     * @throws IllegalArgumentException if a name is repeated or there are
+     *            none.
+     */
+    public Resources(List<String> names) {
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("empty resource catalogue");
+        }
+        this.names = names.toArray(new String[0]);
+        for (int i = 0; i < this.names.length; i++) {
+            if (ids.put(this.names[i], i) != null) {
+                throw new IllegalArgumentException(
+                    "resource " + this.names[i] + " listed twice");
+            }
+        }
+    } // Resources(List)
+
+    /** Returns the catalogue of the Grain values. */
+    private static Resources grains() {
+        List<String> n = new ArrayList<String>();
+        for (Grain g : Grain.values()) {
+            n.add(g.toString());
+        }
+        return new Resources(n);
+    } // grains()
+
+    /** Reads a catalogue from a file with one resource name per line.  Blank
+     * lines and lines starting with '#' are ignored.
+     * @param path the file.
+     * @return the catalogue.
+     * @throws IOException if the file cannot be read.
+     */
+    public static Resources load(Path path) throws IOException {
+        List<String> n = new ArrayList<String>();
+        for (String line : Files.readAllLines(path)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                n.add(line);
+            }
+        }
+        return new Resources(n);
+    } // load(Path)
+
+    /** Makes a catalogue of "n" resources named r0 .. r(n-1).
+     * @param n the number of resources.
+     * @return the catalogue.
+     */
+    public static Resources generate(int n) {
+        List<String> names = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            names.add("r" + i);
+        }
+        return new Resources(names);
+    } // generate(int)
+
+    /** Returns the number of resources.
+     * @return the number of resources.
+     */
+    public int size() {
+        return names.length;
+    } // size()
+
+    /** Returns the name of resource "id".
+     * @param id the resource id.
+     * @return its name.
+     */
+    public String name(int id) {
+        return names[id];
+    } // name(int)
+
+    /** Returns the id of a resource.
+     * @param name the resource name.
+     * @return its id, or -1 if it is not in the catalogue.
+     */
+    public int indexOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    } // indexOf(String)
+} // Resources
@@ -0,0 +1,57 @@
+import java.lang.invoke.VarHandle;
+
+/** A sequence lock: lets readers take a consistent copy of data that is
+ * changed by one writer at a time, without blocking the writer and without
+ * the writer ever waiting for readers.
+ * <p>
+ * Writers, which must already be serialized by some other means, bracket
+ * each change with beginWrite() and endWrite().  A reader calls
+ * readBegin(), copies the data, and keeps the copy only if validate()
+ * then succeeds; otherwise a write overlapped the copy and it must retry:
+ * <pre>
+ *     long v;
+ *     do {
+ *         v = seq.readBegin();
+ *         ... copy the fields ...
+ *     } while (!seq.validate(v));
+ * </pre>
+ */
+public class SeqLock {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Incremented before and after every write; odd while one is underway. */
+    private volatile long version;
+
+    /** Marks the start of a write. */
+    public void beginWrite() {
+        version = version + 1;
+        VarHandle.storeStoreFence();
+    } // beginWrite()
+
+    /** Marks the end of a write. */
+    public void endWrite() {
+        version = version + 1;
+    } // endWrite()
+
+    /** Waits until no write is underway and returns the version to pass to
+     * validate().
+     * @return the current (even) version.
+     */
+    public long readBegin() {
+        long v;
+        while (((v = version) & 1) != 0) {
+            Thread.onSpinWait();
+        }
+        return v;
+    } // readBegin()
+
+    /** Indicates whether anything was written since readBegin() returned v.
+     * @param v the value returned by readBegin().
+     * @return true if the data read since then is consistent.
+     */
+    public boolean validate(long v) {
+        VarHandle.loadLoadFence();
+        return version == v;
+    } // validate(long)
+} // SeqLock
@@ -0,0 +1,495 @@
+import java.util.*;
+import static java.lang.System.*;
+
+
+/** Discrete-event version of P2.
+ * The supplier and the brewers are driven from a single thread by a
+ * virtual clock and a priority queue of pending events, so the random
+ * sleeps of Supplier and Brewer cost nothing in wall-clock time.  The
+ * workload (delays, order sizes, choice of trader) is the same as P2's, and
+ * the run ends with the same conservation report.
+ * <p>
+ * The traders swap through a SwapNegotiator, as in P2, by way of
+ * TraderImpl.tryGetOrSwap().  A brewer that cannot be filled waits in a
+ * queue for its trader, the grain it is furthest short of there even
+ * after swapping, and the amount of that grain it needs.  Waiting on the
+ * scarcest grain rather than the first keeps brewers from hopping between
+ * queues as stocks rise and fall.  Only a rise in some trader's stock of
+ * some grain can let a waiting brewer proceed, so each rise retries just
+ * the queues for that trader and grain, smallest need first, and stops at
+ * the first brewer that still cannot get enough of the grain: the ones
+ * behind it need as much or more.  A brewer that now lacks something else
+ * moves to that queue.
+ */
+public class Simulation {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Bits of an event key used for the actor; the rest is the time. */
+    private static final int ACTOR_BITS = 23;
+
+    /** Mask extracting the actor from an event key. */
+    private static final long ACTOR_MASK = (1L << ACTOR_BITS) - 1;
+
+    /** Virtual time (ms) brewers are given after the last delivery.  P2
+     * itself now stops as soon as its brewers are quiescent.
+     */
+    private static final long GRACE = 3000;
+
+    /** Number of Brewers.  Actor ids 0 .. brewerCount-1 are brewers and
+     * actor id brewerCount is the supplier.
+     */
+    private final int brewerCount;
+
+    /** Number of deliveries the supplier still has to make. */
+    private int deliveriesLeft;
+
+    /** Largest amount of a grain in one order. */
+    private static final int MAX_ORDER = 10;
+
+    private static final Grain[] GRAINS = Grain.values();
+
+    /** Traders, indexed by Grain.ordinal() of their specialty. */
+    private final TraderImpl[] traders;
+
+    /** Swaps grain between the traders. */
+    private final SwapNegotiator negotiator;
+
+    /** Brewers blocked at each trader, by the grain they are short of and
+     * the amount of it they need: brewers waiting at trader t, short of
+     * grain g, needing n of it, are at waiting[queue(t, g, n)], in arrival
+     * order.
+     */
+    private final IntQueue[] waiting;
+
+    /** dirty[t * GRAINS.length + g] is set when trader t's stock of grain g
+     * has risen since its queues were last retried.
+     */
+    private final boolean[] dirty;
+    private int dirtyCount;
+
+    /** Snapshots of every trader, before and after a fill.  Every change
+     * to the traders' stock is followed by a new snapshot in after, so it
+     * always holds their current stock.
+     */
+    private final Order[] before;
+    private final Order[] after;
+
+    /** The order each brewer is currently requesting. */
+    private final Order[] orders;
+
+    /** The amount consumed by each brewer. */
+    private final Order[] consumed;
+
+    /** Total delivered by the supplier. */
+    private final Order delivered = new Order();
+
+    /** Random number generator. */
+    private final Random rand;
+
+    /** Flag to control debugging output. */
+    private final boolean verbose;
+
+    /** Pending events, as a binary min-heap of keys
+     * (time &lt;&lt; ACTOR_BITS | actor).
+     */
+    private long[] heap = new long[16];
+
+    /** Number of events in the heap. */
+    private int size;
+
+    /** The current virtual time, in milliseconds. */
+    private long now;
+
+    /** Creates a new Simulation.
+     * @param brewerCount the number of brewers.
+     * @param iterations the number of deliveries the supplier makes.
+     * @param rand the random number generator.
+     * @param verbose if true, print every event.
+     */
+    public Simulation(int brewerCount, int iterations, Random rand,
+            boolean verbose) {
+        if (brewerCount > ACTOR_MASK) {
+            throw new IllegalArgumentException("too many brewers");
+        }
+        this.brewerCount = brewerCount;
+        this.deliveriesLeft = iterations;
+        this.rand = rand;
+        this.verbose = verbose;
+        traders = new TraderImpl[GRAINS.length];
+        EnumMap<Grain, Trader> byGrain = new EnumMap<Grain, Trader>(Grain.class);
+        for (Grain g : GRAINS) {
+            traders[g.ordinal()] = new TraderImpl(g);
+            byGrain.put(g, traders[g.ordinal()]);
+        }
+        negotiator = new SwapNegotiator(byGrain);
+        for (TraderImpl t : traders) {
+            t.setNegotiator(negotiator);
+        }
+        waiting = new IntQueue[GRAINS.length * GRAINS.length * MAX_ORDER];
+        for (int q = 0; q < waiting.length; q++) {
+            waiting[q] = new IntQueue();
+        }
+        dirty = new boolean[GRAINS.length * GRAINS.length];
+        before = new Order[GRAINS.length];
+        after = new Order[GRAINS.length];
+        for (int t = 0; t < GRAINS.length; t++) {
+            before[t] = new Order();
+            after[t] = new Order();
+        }
+        orders = new Order[brewerCount];
+        consumed = new Order[brewerCount];
+        for (int i = 0; i < brewerCount; i++) {
+            orders[i] = new Order();
+            consumed[i] = new Order();
+        }
+    } // Simulation(int,int,Random,boolean)
+
+    /** Random integer in [0, max), as P2.randInt(int). */
+    private int randInt(int max) {
+        return rand.nextInt(max);
+    } // randInt(int)
+
+    /** Random integer in [min, max], as P2.randInt(int,int). */
+    private int randInt(int min, int max) {
+        return min + rand.nextInt(max - min + 1);
+    } // randInt(int,int)
+
+    /** Random grain, as Grain.randChoice(). */
+    private Grain randGrain() {
+        return GRAINS[randInt(0, GRAINS.length - 1)];
+    } // randGrain()
+
+    /** A growable FIFO of ints. */
+    private static class IntQueue {
+        private int[] items = new int[4];
+        private int head;
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int peek() {
+            return items[head];
+        }
+
+        int poll() {
+            int x = items[head];
+            head = (head + 1) & (items.length - 1);
+            size--;
+            return x;
+        }
+
+        void add(int x) {
+            if (size == items.length) {
+                int[] bigger = new int[2 * size];
+                for (int i = 0; i < size; i++) {
+                    bigger[i] = items[(head + i) & (items.length - 1)];
+                }
+                items = bigger;
+                head = 0;
+            }
+            items[(head + size++) & (items.length - 1)] = x;
+        }
+    } // IntQueue
+
+    /** Returns the index in waiting of the queue for brewers at trader t
+     * short of grain g and needing n of it.
+     */
+    private static int queue(int t, int g, int n) {
+        return (t * GRAINS.length + g) * MAX_ORDER + Math.min(n, MAX_ORDER) - 1;
+    } // queue(int,int,int)
+
+    /** Notes that trader t's stock of grain g has risen. */
+    private void markDirty(int t, int g) {
+        int k = t * GRAINS.length + g;
+        if (!dirty[k]) {
+            dirty[k] = true;
+            dirtyCount++;
+        }
+    } // markDirty(int,int)
+
+    /** Prints a message stamped with the virtual time, if verbose. */
+    private void debug(String format, Object... args) {
+        if (verbose) {
+            out.printf("%8d %s%n", now, String.format(format, args));
+        }
+    } // debug(String,Object...)
+
+    /** Schedules actor to act "delay" ms from now.
+     * @param delay the delay in virtual milliseconds.
+     * @param actor the actor id.
+     */
+    private void schedule(long delay, int actor) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * size);
+        }
+        long key = ((now + delay) << ACTOR_BITS) | actor;
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    } // schedule(long,int)
+
+    /** Removes and returns the earliest event key. */
+    private long next() {
+        long result = heap[0];
+        long last = heap[--size];
+        int i = 0;
+        for (;;) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return result;
+    } // next()
+
+    /** One delivery by the supplier, as in Supplier.run(). */
+    private void supply() {
+        Grain g = randGrain();
+        int amount = randInt(1, 10);
+        delivered.change(g, amount);
+        debug("Supplier: delivering %d %s of %s to the %s broker",
+            amount, (amount == 1 ? "bushel" : "bushels"), g, g);
+        traders[g.ordinal()].tryDeliver(amount);
+        traders[g.ordinal()].snapshot(after[g.ordinal()]);
+        // The new grain may fill brewers here or at any trader that can
+        // swap for it, and lets this trader swap for what its brewers lack.
+        for (int t = 0; t < GRAINS.length; t++) {
+            markDirty(t, g.ordinal());
+            markDirty(g.ordinal(), t);
+        }
+        settle();
+        if (--deliveriesLeft > 0) {
+            schedule(randInt(100), brewerCount);
+        } else {
+            debug("Supplier shutting down ...");
+        }
+    } // supply()
+
+    /** Tries to fill brewer b's order at trader t, swapping if need be, and
+     * marks every stock the attempt raised.
+     * @return true if the order was filled.
+     */
+    private boolean tryFill(int b, int t) {
+        for (int i = 0; i < traders.length; i++) {
+            traders[i].snapshot(before[i]);
+        }
+        boolean done = traders[t].tryGetOrSwap(orders[b]);
+        for (int i = 0; i < traders.length; i++) {
+            traders[i].snapshot(after[i]);
+            for (Grain g : GRAINS) {
+                if (after[i].get(g) > before[i].get(g)) {
+                    markDirty(i, g.ordinal());
+                }
+            }
+        }
+        if (done) {
+            filled(b, GRAINS[t]);
+        }
+        return done;
+    } // tryFill(int,int)
+
+    /** Returns the grain of brewer b's order that trader t is furthest
+     * from making up, even by swapping surplus of its specialty with the
+     * other specialists as TraderImpl.negotiate() would, or -1 if t could
+     * fill the order now.  Reads the stock in after.
+     */
+    private int blocker(int b, int t) {
+        Order order = orders[b];
+        Order own = after[t];
+        int surplus = own.get(GRAINS[t]) - order.get(GRAINS[t]);
+        int worst = -1;
+        int most = 0;
+        if (surplus < 0) {
+            worst = t;
+            most = -surplus;
+            surplus = 0;
+        }
+        for (Grain k : GRAINS) {
+            int lack = order.get(k) - own.get(k);
+            if (k.ordinal() == t || lack <= 0) {
+                continue;
+            }
+            int got = Math.min(lack, Math.min(surplus, after[k.ordinal()].get(k)));
+            if (lack - got > most) {
+                worst = k.ordinal();
+                most = lack - got;
+            }
+            surplus -= got;
+        }
+        return worst;
+    } // blocker(int,int)
+
+    /** Queues brewer b, which trader t could not fill, by the grain it is
+     * furthest short of there.
+     */
+    private void await(int b, int t) {
+        int k = blocker(b, t);
+        if (k < 0) {
+            // only the order of the swaps let it down; any rise here
+            // retries it
+            k = t;
+        }
+        waiting[queue(t, k, orders[b].get(GRAINS[k]))].add(b);
+    } // await(int,int)
+
+    /** Retries the queues of every trader and grain whose stock has risen,
+     * until no retry raises any more.
+     */
+    private void settle() {
+        while (dirtyCount > 0) {
+            for (int k = 0; k < dirty.length; k++) {
+                if (dirty[k]) {
+                    dirty[k] = false;
+                    dirtyCount--;
+                    retry(k / GRAINS.length, k % GRAINS.length);
+                }
+            }
+        }
+    } // settle()
+
+    /** Retries the brewers waiting at trader t short of grain g, smallest
+     * need first, stopping at the first that still cannot get enough g.
+     * Only a brewer that t can now fill goes through tryGetOrSwap(); the
+     * others move to the queue of what they now lack.
+     */
+    private void retry(int t, int g) {
+        for (int n = 1; n <= MAX_ORDER; n++) {
+            IntQueue q = waiting[queue(t, g, n)];
+            while (!q.isEmpty()) {
+                int k = blocker(q.peek(), t);
+                if (k == g) {
+                    return;
+                }
+                int b = q.poll();
+                if (k >= 0 || !tryFill(b, t)) {
+                    await(b, t);
+                }
+            }
+        }
+    } // retry(int,int)
+
+    /** Records that brewer b got its order from the "g" trader. */
+    private void filled(int b, Grain g) {
+        debug("Brewer%d: got %s from the %s trader", b, orders[b], g);
+        consumed[b].addAll(orders[b]);
+        schedule(randInt(500), b);
+    } // filled(int,Grain)
+
+    /** One request by brewer b, as in Brewer.run(). */
+    private void request(int b) {
+        Order order = orders[b];
+        for (Grain g : GRAINS) {
+            order.set(g, randInt(1, MAX_ORDER));
+        }
+        Grain g = randGrain();
+        debug("Brewer%d: requesting %s from the %s trader", b, order, g);
+        if (!tryFill(b, g.ordinal())) {
+            await(b, g.ordinal());
+        }
+        settle();
+    } // request(int)
+
+    /** Runs the simulation to completion: until the supplier is done and
+     * GRACE virtual milliseconds have passed since its last delivery.
+     */
+    public void run() {
+        for (int i = 0; i < brewerCount; i++) {
+            schedule(randInt(500), i);
+        }
+        long end = GRACE;
+        if (deliveriesLeft > 0) {
+            schedule(randInt(100), brewerCount);
+            end = Long.MAX_VALUE;
+        }
+        while (size > 0) {
+            long key = heap[0];
+            if ((key >>> ACTOR_BITS) > end) {
+                break;
+            }
+            next();
+            now = key >>> ACTOR_BITS;
+            int actor = (int) (key & ACTOR_MASK);
+            if (actor == brewerCount) {
+                supply();
+                if (deliveriesLeft == 0) {
+                    end = now + GRACE;
+                }
+            } else {
+                request(actor);
+            }
+        }
+        debug("simulation ends");
+    } // run()
+
+    /** Prints the conservation report, as P2 does. */
+    public void report() {
+        out.printf("**** Simulation terminating at t = %d ms%n", now);
+        Order[] onHand = new Order[traders.length];
+        for (int i = 0; i < traders.length; i++) {
+            onHand[i] = traders[i].getAmountOnHand();
+        }
+        P2.report(delivered, onHand, consumed);
+        out.println(negotiator.stats());
+    } // report()
+
+    /** Prints a usage message and terminates. */
+    private static void usage() {
+        err.println(
+            "usage: Simulation [-v][-r] brewerCount iterations");
+        exit(1);
+    } // usage()
+
+    /** Main program.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) {
+        boolean verbose = false;
+        Random rand = null;
+        GetOpt options = new GetOpt("Simulation", args, "vr");
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'v':
+                verbose = true;
+                break;
+            case 'r':
+                rand = new Random(0);
+                break;
+            }
+        }
+        if (rand == null) {
+            rand = new Random();
+        }
+        if (options.optind != args.length - 2) {
+            usage();
+        }
+        int brewerCount = Integer.parseInt(args[options.optind]);
+        int iterations = Integer.parseInt(args[options.optind + 1]);
+
+        Simulation sim = new Simulation(brewerCount, iterations, rand, verbose);
+        sim.run();
+        sim.report();
+    } // main(String[])
+} // Simulation
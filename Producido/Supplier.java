@@ -1,4 +1,6 @@
 
+import java.util.Collection;
+import java.util.SplittableRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,12 +15,160 @@ public class Supplier implements Runnable {
     /** Total delivered thus far */
     private Order delivered = new Order();
 
+    /** Lets getProduction(Order) read delivered while run() updates it. */
+    private final SeqLock seq = new SeqLock();
+
+    /** If true, deliver the grain most in demand rather than a random one. */
+    private boolean adaptive = false;
+
+    /** The only grain this supplier delivers, or null for any. */
+    private Grain specialty;
+
+    /** Number of deliveries held up by a full trader. */
+    private volatile int stalls;
+
+    /** This supplier's own random stream. */
+    private final SplittableRandom rand = P2.newRandom();
+
+    /** The market this supplier delivers to. */
+    private final Market market;
+
     /** Creates a new Supplier.
      * @param iterations the number of times to iterate before terminating.
+     * @param market the market to deliver to.
      */
-    public Supplier(int iterations) {
+    public Supplier(int iterations, Market market) {
         this.iterations = iterations;
-    } // Supplier(int)
+        this.market = market;
+    } // Supplier(int,Market)
+
+    /** Chooses between random deliveries and deliveries steered by demand.
+     * An adaptive supplier favours the grains that waiting brewer requests
+     * are short of, and passes over specialists that are full.
+     * @param on if true, steer deliveries by demand.
+     */
+    public void setAdaptive(boolean on) {
+        adaptive = on;
+    } // setAdaptive(boolean)
+
+    /** Restricts this supplier to one grain.  A specialized supplier is
+     * never adaptive and never redirects a delivery to another trader.
+     * @param g the grain, or null to deliver any.
+     */
+    public void setSpecialty(Grain g) {
+        specialty = g;
+    } // setSpecialty(Grain)
+
+    /** Returns the number of times a full trader held up a delivery.
+     * @return the number of stalls.
+     */
+    public int getStalls() {
+        return stalls;
+    } // getStalls()
+
+    /** Indicates whether a trader would refuse a delivery.
+     * @param t the trader.
+     * @param amount the size of the delivery.
+     * @return true if t is bounded and has no room for it.
+     */
+    private static boolean full(Trader t, int amount) {
+        if (t instanceof TraderImpl) {
+            return ((TraderImpl) t).isFull(amount);
+        }
+        if (t instanceof LockFreeTraderImpl) {
+            return ((LockFreeTraderImpl) t).isFull(amount);
+        }
+        return false;
+    } // full(Trader,int)
+
+    /** Offers a delivery to a trader without waiting on it, where the
+     * trader allows that.  A bounded TraderImpl may take only part of it.
+     * @param t the trader.
+     * @param amount the size of the delivery.
+     * @return the number of bushels accepted.
+     */
+    private static int offer(Trader t, int amount)
+            throws InterruptedException {
+        if (t instanceof TraderImpl) {
+            return ((TraderImpl) t).offer(amount);
+        }
+        if (t instanceof LockFreeTraderImpl) {
+            return ((LockFreeTraderImpl) t).tryDeliver(amount) ? amount : 0;
+        }
+        t.deliver(amount);
+        return amount;
+    } // offer(Trader,int)
+
+    /** Picks a grain whose specialist has room, at random but weighted by
+     * demand: a grain that n waiting requests are short of is n + 1 times as
+     * likely as one nobody is waiting for.  Always picking the single most
+     * wanted grain would starve brewers that need the others as well.
+     * @param amount the size of the delivery.
+     * @param dflt the grain to pick if every specialist is full.
+     * @return the grain.
+     */
+    private Grain mostWanted(int amount, Grain dflt) {
+        Grain[] grains = Grain.values();
+        int[] weight = new int[grains.length];
+        int total = 0;
+        for (Grain g : grains) {
+            Trader t = market.specialist(g);
+            if (!full(t, amount)) {
+                weight[g.ordinal()] = market.demand(g) + 1;
+                total += weight[g.ordinal()];
+            }
+        }
+        if (total == 0) {
+            return dflt;
+        }
+        int r = P2.randInt(total);
+        for (Grain g : grains) {
+            r -= weight[g.ordinal()];
+            if (r < 0) {
+                return g;
+            }
+        }
+        return dflt;
+    } // mostWanted(int,Grain)
+
+    /** Delivers "amount" bushels of g, or of whatever grain is most wanted
+     * if g's specialist stays full.  Never waits on a single full trader,
+     * since the grain brewers are waiting for may be at another, unless
+     * this supplier has a specialty.  Goes through TraderImpl.offer(), so
+     * suppliers delivering to the same trader do not queue for its lock,
+     * and LockFreeTraderImpl.tryDeliver(), so a full one is passed over
+     * rather than failing.  A trader that takes only part of the delivery
+     * is offered the rest again like a full one; each part is counted as
+     * produced and delivered as it is accepted, so that an interrupt
+     * loses only what was not.
+     * @param g the grain to deliver if possible.
+     * @param amount the size of the delivery.
+     * @return the grain of the last part delivered.
+     */
+    private Grain deliver(Grain g, int amount) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            int part = offer(market.specialist(g), amount);
+            if (part > 0) {
+                P2.produced(g, part);
+                seq.beginWrite();
+                delivered.change(g, part);
+                seq.endWrite();
+                P2.trace(EventLog.DELIVER, g, part);
+                amount -= part;
+                if (amount == 0) {
+                    return g;
+                }
+            }
+            if (attempt == 0) {
+                stalls++;
+            } else {
+                Thread.sleep(Math.min(1 << attempt, 50));
+            }
+            if (specialty == null) {
+                g = mostWanted(amount, g);
+            }
+        }
+    } // deliver(Grain,int)
 
     /** Indicates the amount of each grain delivered.
      * @return an indication of the total amount of each grain delivered
@@ -28,28 +178,82 @@ public class Supplier implements Runnable {
         return delivered;
     } // getProduction()
 
+    /** Copies the amount of each grain delivered thus far into "into",
+     * without blocking the supplier or allocating.
+     * @param into the Order to fill in.
+     * @return into.
+     */
+    public Order getProduction(Order into) {
+        long v;
+        do {
+            v = seq.readBegin();
+            into.setAll(delivered);
+        } while (!seq.validate(v));
+        return into;
+    } // getProduction(Order)
+
+    /** Adds up the amount of each grain delivered by several suppliers,
+     * reading each one's own totals without blocking any of them.
+     * @param suppliers the suppliers.
+     * @param into the Order to fill in.
+     * @return into.
+     */
+    public static Order getProduction(Collection<Supplier> suppliers,
+            Order into) {
+        Order one = new Order();
+        into.clear();
+        for (Supplier s : suppliers) {
+            into.addAll(s.getProduction(one));
+        }
+        return into;
+    } // getProduction(Collection,Order)
+
     /** Main loop.
      * Repeatedly generates orders to random brokers.
      */
     public void run() {
+        P2.setRandom(rand);
         for (int i = 0; i < iterations; i++) {
             try {
-                Thread.sleep(P2.randInt(100));
+                Thread.sleep(P2.workload().interval(rand));
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            Grain g = Grain.randChoice();
+            Grain g = P2.workload().grain(rand);
             int amount = P2.randInt(1,10);
-            delivered.change(g, amount);
-            P2.debug("delivering %d %s of %s to the %s broker",
-                amount, (amount == 1 ? "bushel" : "bushels"), g, g);
+            if (specialty != null) {
+                g = specialty;
+            } else if (adaptive) {
+                g = mostWanted(amount, g);
+            }
+            TraderEvents.Delivery event = new TraderEvents.Delivery();
+            event.begin();
+            Grain chosen = g;
+            // The delivery and its count in the monitor are one movement.
+            ConservationMonitor m = P2.monitor();
+            if (m != null) {
+                m.begin();
+            }
             try {
-                P2.specialist(g).deliver(amount);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(Supplier.class.getName()).log(Level.SEVERE, null, ex);
+                try {
+                    g = deliver(g, amount);
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(Supplier.class.getName()).log(Level.SEVERE, null, ex);
+                    continue;
+                }
+            } finally {
+                if (m != null) {
+                    m.end();
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.grain = g.name();
+                event.bushels = amount;
+                event.redirected = g != chosen;
+                event.commit();
             }
-
         }
-        P2.debug("Supplier shutting down ...");
+        P2.trace(EventLog.SUPPLIER_DONE, null, 0);
     } // run()
 } // Supplier
@@ -0,0 +1,230 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Sources grain a trader is short of from the specialists in that grain,
+ * paying with the trader's own specialty.
+ * <p>
+ * Deadlock freedom does not depend on lock ordering: a trader that
+ * negotiates first moves the specialty grain it is offering out of its
+ * inventory, releases its own lock, and only then calls the other trader,
+ * whose trySwap() takes just that trader's lock and never waits.  No thread
+ * ever holds two traders' locks or waits on one trader while holding
+ * another, so two traders swapping with each other at the same time
+ * cannot deadlock.
+ */
+public class SwapNegotiator {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** The specialist for each grain. */
+    private final EnumMap<Grain, Trader> traders;
+
+    /** Number of swap attempts made. */
+    private final AtomicLong attempts = new AtomicLong();
+
+    /** Number of bushels obtained by swapping. */
+    private final AtomicLong obtained = new AtomicLong();
+
+    /** Negotiators of the sibling markets to steal from, nearest first;
+     * empty for a market on its own.
+     */
+    private volatile List<SwapNegotiator> siblings = Collections.emptyList();
+
+    /** Number of acquire() and steal() calls under way. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Number of steal attempts made and bushels stolen. */
+    private final AtomicLong stealAttempts = new AtomicLong();
+    private final AtomicLong stolen = new AtomicLong();
+
+    /** Creates a SwapNegotiator for a market.
+     * @param traders traders.get(g) is the specialist in grain g.
+     */
+    public SwapNegotiator(EnumMap<Grain, Trader> traders) {
+        this.traders = traders;
+    } // SwapNegotiator(EnumMap)
+
+    /** Obtains up to "amt" bushels of "want" from its specialist in
+     * exchange for the same amount of "give", without waiting.
+     * The caller must not hold any trader's lock.
+     * @param give the grain offered in exchange.
+     * @param want the grain needed.
+     * @param amt the number of bushels needed.
+     * @return the number of bushels obtained (and given), 0 .. amt.
+     */
+    public int acquire(Grain give, Grain want, int amt) {
+        Trader t = traders.get(want);
+        if (!(t instanceof TraderImpl || t instanceof LockFreeTraderImpl)
+                || give == want || amt <= 0) {
+            return 0;
+        }
+        attempts.incrementAndGet();
+        inFlight.incrementAndGet();
+        int n;
+        try {
+            n = t instanceof TraderImpl ? ((TraderImpl) t).trySwap(give, amt)
+                : ((LockFreeTraderImpl) t).trySwap(give, amt);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        if (n > 0) {
+            obtained.addAndGet(n);
+        }
+        return n;
+    } // acquire(Grain,Grain,int)
+
+    /** Tells the market that grain g has arrived at a trader, so that
+     * callers elsewhere waiting to swap or steal for it try again.  The
+     * caller must not hold any trader's lock.
+     * @param g the grain.
+     */
+    public void supplied(Grain g) {
+        nudge(g, traders.get(g));
+        for (SwapNegotiator s : siblings) {
+            s.nudge(g, null);
+        }
+    } // supplied(Grain)
+
+    /** Nudges every trader in this market but one about grain g.
+     * @param g the grain.
+     * @param except the trader to leave out, or null.
+     */
+    private void nudge(Grain g, Trader except) {
+        for (Trader t : traders.values()) {
+            if (t == except) {
+                continue;
+            }
+            if (t instanceof TraderImpl) {
+                ((TraderImpl) t).nudge(g);
+            } else if (t instanceof LockFreeTraderImpl) {
+                ((LockFreeTraderImpl) t).nudge();
+            }
+        }
+    } // nudge(Grain,Trader)
+
+    /** Indicates whether the specialist in g has a delivery waiting for
+     * room.
+     * @param g the grain.
+     * @return true if a delivery of g is held up.
+     */
+    public boolean stalled(Grain g) {
+        Trader t = traders.get(g);
+        return t instanceof TraderImpl && ((TraderImpl) t).isStalled();
+    } // stalled(Grain)
+
+    /** Tells the specialist in g that a request elsewhere is short of it,
+     * so that a delivery held up for room may be let in.  The caller must
+     * not hold any trader's lock.
+     * @param g the grain.
+     */
+    public void wanted(Grain g) {
+        Trader t = traders.get(g);
+        if (t instanceof TraderImpl) {
+            ((TraderImpl) t).demandRose();
+        }
+    } // wanted(Grain)
+
+    /** Sets the sibling markets that steal() takes grain from.
+     * @param siblings their negotiators, in the order to try them.
+     */
+    public void setSiblings(List<SwapNegotiator> siblings) {
+        this.siblings = siblings;
+    } // setSiblings(List)
+
+    /** Indicates whether there are sibling markets to steal from.
+     * @return true if steal() can obtain anything.
+     */
+    public boolean canSteal() {
+        return !siblings.isEmpty();
+    } // canSteal()
+
+    /** Takes "amt" bushels of "want" from the first sibling market whose
+     * specialist in it can spare them all, without waiting.  Unlike a swap,
+     * nothing is given in return: the grain simply moves to the stealing
+     * market.  The caller must not hold any trader's lock.
+     * @param want the grain needed.
+     * @param amt the number of bushels needed.
+     * @return amt if the grain was obtained, otherwise 0.
+     */
+    public int steal(Grain want, int amt) {
+        inFlight.incrementAndGet();
+        try {
+            for (SwapNegotiator s : siblings) {
+                Trader t = s.traders.get(want);
+                if (t instanceof TraderImpl) {
+                    stealAttempts.incrementAndGet();
+                    if (((TraderImpl) t).trySteal(want, amt) == amt) {
+                        stolen.addAndGet(amt);
+                        return amt;
+                    }
+                }
+            }
+            return 0;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    } // steal(Grain,int)
+
+    /** Indicates whether a swap or steal is under way right now.
+     * @return true if grain may be moving between traders.
+     */
+    public boolean busy() {
+        return inFlight.get() > 0;
+    } // busy()
+
+    /** Returns the number of bushels moved by swaps and steals so far; it
+     * grows whenever one of them succeeds.
+     * @return the number of bushels.
+     */
+    public long moved() {
+        return obtained.get() + stolen.get();
+    } // moved()
+
+    /** Reports how many waiting requests, at all the traders in the market,
+     * are short of grain g.  Approximate, since it reads each trader
+     * without its lock.
+     * @param g the grain.
+     * @return the number of requests.
+     */
+    public int demand(Grain g) {
+        int n = 0;
+        for (Trader t : traders.values()) {
+            if (t instanceof TraderImpl) {
+                n += ((TraderImpl) t).demand(g);
+            }
+        }
+        return n;
+    } // demand(Grain)
+
+    /** Reports the most of grain g that a waiting request, at any trader
+     * in the market, lacks.  Approximate, since it reads each trader
+     * without its lock.
+     * @param g the grain.
+     * @return the largest lack, or 0 if no request is short of g.
+     */
+    public int lacks(Grain g) {
+        int most = 0;
+        for (Trader t : traders.values()) {
+            if (t instanceof TraderImpl) {
+                most = Math.max(most, ((TraderImpl) t).lacks(g));
+            }
+        }
+        return most;
+    } // lacks(Grain)
+
+    /** Returns a one-line summary of the swaps made.
+     * @return the summary.
+     */
+    public String stats() {
+        String swaps = String.format("swaps: attempts = %d, bushels obtained = %d",
+            attempts.get(), obtained.get());
+        if (!canSteal()) {
+            return swaps;
+        }
+        return swaps + String.format("; steals: attempts = %d, bushels stolen = %d",
+            stealAttempts.get(), stolen.get());
+    } // stats()
+} // SwapNegotiator
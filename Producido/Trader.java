@@ -1,3 +1,4 @@
+import java.util.concurrent.CompletableFuture;
 
 public interface Trader {
     // VERSION = 1;
@@ -8,6 +9,17 @@ public interface Trader {
      */
     Order getAmountOnHand();
 
+    /** Copies the amount of each grain held by this Trader into "into".
+     * Implementations should make the copy a consistent snapshot without
+     * blocking the Trader; this default just copies getAmountOnHand().
+     * @param into the Order to fill in.
+     * @return into.
+     */
+    default Order snapshot(Order into) {
+        into.setAll(getAmountOnHand());
+        return into;
+    }
+
     /** A request from a brewer.
      * The caller is blocked until the request can be completely filled.
      * @param order the number of bushels needed of each type of grain.
@@ -16,14 +28,32 @@ public interface Trader {
      */
     void get(Order order) throws InterruptedException;
 
+    /** A request from a brewer that does not block the caller.
+     * The returned future is completed with "order" once the request has been
+     * completely filled.  The caller must not modify order until then.
+     * This default implementation runs get(order) on a thread of
+     * BlockingGets' pool, tying that thread up while it waits; cancelling
+     * the future interrupts it.  Implementations should override it to queue
+     * the order instead.
+     * @param order the number of bushels needed of each type of grain.
+     * @return a future completed with order when it has been filled.
+     */
+    default CompletableFuture<Order> getAsync(final Order order) {
+        return BlockingGets.getAsync(this, order);
+    }
+
     /** Responds to a swap request from another Trader.
      * The other Trader calls this method to request a trade of a particular
      * type of grain for this Trader's specialty.  Delays the caller until this
      * Trader can complete the swap.
+     * <p>
+     * Traders backed by an exchange (BookExchange's sellers) hold no stock
+     * to swap with and throw IllegalStateException instead.
      * @param what the type of grain the other Trader wants to swap.
      * @param amt the number of bushels to swap.
      * @throws InterruptedException if the current thread is interrupted while
      *            waiting for the swap to succeed.
+     * @throws IllegalStateException if this Trader does not swap.
      */
     void swap(Grain what, int amt) throws InterruptedException;
 
@@ -34,4 +64,14 @@ public interface Trader {
      *               being delivered.
      */
     void deliver(int amt) throws InterruptedException;
+
+    /** Takes back an order this Trader filled that the caller could not
+     * use, such as one part of a split order given up half way.  This
+     * default takes nothing back, and the caller keeps the grain.
+     * @param order the order, exactly as it was filled.
+     * @return true if the grain is back in this Trader's stock.
+     */
+    default boolean restock(Order order) {
+        return false;
+    }
 } // Trader
@@ -0,0 +1,235 @@
+import java.util.*;
+import java.util.concurrent.*;
+import static java.lang.System.*;
+
+
+/** Throughput and latency benchmark for Trader implementations.
+ * Each worker thread repeatedly delivers enough of the trader's specialty to
+ * cover one order, swaps it for the other grains the order needs, and then
+ * gets the order, timing every call.  Inventory is conserved over an
+ * iteration, so workers can always make progress.
+ */
+public class TraderBench {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Operation names, indexed by the op constants below. */
+    private static final String[] OPS = { "deliver", "swap", "get" };
+    private static final int DELIVER = 0;
+    private static final int SWAP = 1;
+    private static final int GET = 2;
+
+    /** Creates the Trader being measured.
+     * @param kind "lock" or "lockfree".
+     * @param g the trader's specialty.
+     * @return a new Trader.
+     */
+    static Trader newTrader(String kind, Grain g) {
+        if (kind.equals("lock")) {
+            return new TraderImpl(g);
+        }
+        if (kind.equals("lockfree")) {
+            return new LockFreeTraderImpl(g);
+        }
+        throw new IllegalArgumentException("unknown trader kind " + kind);
+    } // newTrader(String,Grain)
+
+    /** One benchmark thread and the samples it collected. */
+    private static class Worker implements Runnable {
+        private final Trader trader;
+        private final Grain primary;
+        private final int maxOrder;
+        private final double skew;
+        private final SplittableRandom rand;
+        private final CountDownLatch start;
+        private volatile boolean stop;
+
+        /** Latencies in nanoseconds of the completed calls, per operation. */
+        final Histogram[] latency = new Histogram[OPS.length];
+
+        Worker(Trader trader, Grain primary, int maxOrder, double skew,
+                long seed, CountDownLatch start) {
+            this.trader = trader;
+            this.primary = primary;
+            this.maxOrder = maxOrder;
+            this.skew = skew;
+            this.rand = new SplittableRandom(seed);
+            this.start = start;
+            for (int op = 0; op < OPS.length; op++) {
+                latency[op] = new Histogram();
+            }
+        }
+
+        /** Records one latency sample for op.
+         * @param op the operation.
+         * @param nanos the time the call took.
+         */
+        private void record(int op, long nanos) {
+            latency[op].record(nanos);
+        }
+
+        /** Fills order with random amounts.  Grain i's amounts are scaled
+         * by 1 / (i + 1)^skew, so skew 0 is uniform.
+         * @param order the order to fill.
+         * @return the total number of bushels in the order.
+         */
+        private int nextOrder(Order order) {
+            int total = 0;
+            for (Grain g : Grain.values()) {
+                double w = Math.pow(g.ordinal() + 1, -skew);
+                int n = (int) Math.max(1, Math.round(w * rand.nextInt(1, maxOrder + 1)));
+                order.set(g, n);
+                total += n;
+            }
+            return total;
+        }
+
+        public void run() {
+            Order order = new Order();
+            try {
+                start.await();
+                while (!stop) {
+                    int total = nextOrder(order);
+                    long t0 = nanoTime();
+                    trader.deliver(total);
+                    record(DELIVER, nanoTime() - t0);
+                    for (Grain g : Grain.values()) {
+                        if (g != primary) {
+                            t0 = nanoTime();
+                            trader.swap(g, order.get(g));
+                            record(SWAP, nanoTime() - t0);
+                        }
+                    }
+                    t0 = nanoTime();
+                    trader.get(order);
+                    record(GET, nanoTime() - t0);
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            }
+        }
+    } // Worker
+
+    /** Runs one configuration and prints a line per operation.
+     * @param kind the trader kind.
+     * @param threads the number of worker threads.
+     * @param maxOrder the largest per-grain amount in an order.
+     * @param skew the grain skew exponent.
+     * @param millis how long to measure.
+     * @param seed the master random seed.
+     */
+    static void runOne(String kind, int threads, int maxOrder, double skew,
+            long millis, long seed) throws InterruptedException {
+        Trader trader = newTrader(kind, Grain.CORN);
+        CountDownLatch start = new CountDownLatch(1);
+        SplittableRandom seeds = new SplittableRandom(seed);
+        Worker[] workers = new Worker[threads];
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(trader, Grain.CORN, maxOrder, skew,
+                seeds.nextLong(), start);
+            ts[i] = new Thread(workers[i], "Bench" + i);
+            ts[i].start();
+        }
+        long t0 = nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        // A worker may be blocked in the trader waiting for grain another
+        // worker was about to supply, so stop alone could leave it there.
+        for (int i = 0; i < threads; i++) {
+            workers[i].stop = true;
+            ts[i].interrupt();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        double secs = (nanoTime() - t0) / 1e9;
+
+        for (int op = 0; op < OPS.length; op++) {
+            Histogram all = new Histogram();
+            for (Worker w : workers) {
+                all.addAll(w.latency[op]);
+            }
+            out.printf("%-8s %4d %4d %5.2f %-7s %12.0f %9d %9d %9d%n",
+                kind, threads, maxOrder, skew, OPS[op], all.count() / secs,
+                all.percentile(0.50), all.percentile(0.99),
+                all.percentile(0.999));
+        }
+    } // runOne(...)
+
+    /** Parses a comma-separated list of integers.
+     * @param s the list.
+     * @return the values.
+     */
+    static int[] intList(String s) {
+        String[] parts = s.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    } // intList(String)
+
+    /** Prints a usage message and terminates. */
+    private static void usage() {
+        err.println(
+            "usage: TraderBench [-k lock,lockfree][-t threads,...]"
+            + "[-o maxOrder,...][-z skew][-d millis][-s seed]");
+        exit(1);
+    } // usage()
+
+    /** Runs every combination of the given trader kinds, thread counts and
+     * order sizes.
+     * @param args the command-line arguments.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String[] kinds = { "lock", "lockfree" };
+        int[] threads = { 1, 2, 4, 8 };
+        int[] orders = { 10 };
+        double skew = 0;
+        long millis = 2000;
+        long seed = 0;
+
+        GetOpt options = new GetOpt("TraderBench", args, "k:t:o:z:d:s:");
+        int opt;
+        while ((opt = options.nextOpt()) != -1) {
+            switch (opt) {
+            default:
+                usage();
+                break;
+            case 'k':
+                kinds = options.optarg.split(",");
+                break;
+            case 't':
+                threads = intList(options.optarg);
+                break;
+            case 'o':
+                orders = intList(options.optarg);
+                break;
+            case 'z':
+                skew = Double.parseDouble(options.optarg);
+                break;
+            case 'd':
+                millis = Long.parseLong(options.optarg);
+                break;
+            case 's':
+                seed = Long.parseLong(options.optarg);
+                break;
+            }
+        }
+        if (options.optind != args.length) {
+            usage();
+        }
+
+        out.printf("%-8s %4s %4s %5s %-7s %12s %9s %9s %9s%n",
+            "trader", "thr", "ord", "skew", "op", "ops/sec",
+            "p50(ns)", "p99(ns)", "p999(ns)");
+        for (String kind : kinds) {
+            for (int t : threads) {
+                for (int o : orders) {
+                    runOne(kind, t, o, skew, millis, seed);
+                }
+            }
+        }
+    } // main(String[])
+} // TraderBench
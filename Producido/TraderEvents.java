@@ -0,0 +1,117 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/** JDK Flight Recorder events for the traders, brewers and suppliers, so
+ * that a recording (P2 --jfr) can line trader stalls up against garbage
+ * collections, safepoints and lock contention in the JVM's own events.
+ * <p>
+ * Each event is a duration: the code it describes calls begin() on entry
+ * and commit() on exit.  While no recording has an event enabled, both are
+ * a check of a flag that the JIT folds away, and the event object itself
+ * is eliminated by escape analysis.  The thresholds keep a recording to the
+ * operations slow enough to be worth explaining; a recording's settings
+ * can lower them.
+ */
+public class TraderEvents {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** A brewer's get() at a TraderImpl. */
+    @Name("producido.TraderGet")
+    @Label("Trader Get")
+    @Category({ "Producido", "Trader" })
+    @Description("An order filled, or abandoned, at a trader")
+    @Threshold("1 ms")
+    static class Get extends Event {
+        @Label("Trader")
+        String trader;
+
+        @Label("Bushels")
+        int bushels;
+
+        @Label("Filled")
+        @Description("False if the caller was interrupted first")
+        boolean filled;
+
+        @Label("Short Of")
+        @Description("The first grain the trader was short of, if any")
+        String shortOf;
+    } // Get
+
+    /** A swap at a TraderImpl, blocking or not. */
+    @Name("producido.TraderSwap")
+    @Label("Trader Swap")
+    @Category({ "Producido", "Trader" })
+    @Threshold("100 us")
+    static class Swap extends Event {
+        @Label("Trader")
+        String trader;
+
+        @Label("Grain Received")
+        String grain;
+
+        @Label("Bushels")
+        int bushels;
+    } // Swap
+
+    /** A delivery to a TraderImpl, whole or batched. */
+    @Name("producido.TraderDeliver")
+    @Label("Trader Deliver")
+    @Category({ "Producido", "Trader" })
+    @Threshold("100 us")
+    static class Deliver extends Event {
+        @Label("Trader")
+        String trader;
+
+        @Label("Bushels")
+        int bushels;
+
+        @Label("Accepted")
+        @Description("False if the trader was full")
+        boolean accepted;
+
+        @Label("Batched")
+        @Description("True for deliveries queued by offer()")
+        boolean batched;
+    } // Deliver
+
+    /** A brewer's request, from the order being placed to its being filled. */
+    @Name("producido.BrewerRequest")
+    @Label("Brewer Request")
+    @Category({ "Producido", "Brewer" })
+    @Threshold("10 ms")
+    static class Request extends Event {
+        @Label("Trader")
+        String trader;
+
+        @Label("Bushels")
+        int bushels;
+
+        @Label("Split")
+        @Description("True if the order was split between traders")
+        boolean split;
+    } // Request
+
+    /** One delivery by a supplier, including any time spent held up by
+     * full traders.
+     */
+    @Name("producido.SupplierDelivery")
+    @Label("Supplier Delivery")
+    @Category({ "Producido", "Supplier" })
+    @Threshold("1 ms")
+    static class Delivery extends Event {
+        @Label("Grain")
+        String grain;
+
+        @Label("Bushels")
+        int bushels;
+
+        @Label("Redirected")
+        @Description("True if delivered to another trader than first chosen")
+        boolean redirected;
+    } // Delivery
+} // TraderEvents
@@ -1,5 +1,10 @@
-import java.util.EnumMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 //a trader implementation
 public class TraderImpl implements Trader{
@@ -7,23 +12,108 @@ public class TraderImpl implements Trader{
 	//class variables that represent the trader's primary grain 
 	public Grain primary;
 
-	//the amount of the 4 grains the trader needs 
-	public int barleyNeeded;
-	public int cornNeeded;
-	public int wheatNeeded;
-	public int riceNeeded;
-	
 	//an order that holds the current amounts of grains the trader has
 	public Order amounts;
 	
+	//guards amounts
+	private final ReentrantLock lock;
+
+	//lets snapshot() read amounts without the lock; every change to amounts,
+	//always made with the lock held, is bracketed by seq.beginWrite/endWrite,
+	//one bracket around each whole change (both sides of a swap, say)
+	private final SeqLock seq = new SeqLock();
+
+	//counts the signals given to waiting callers, guarded by the lock.  A
+	//caller reads it before negotiate() releases the lock and only waits
+	//if it is unchanged afterwards, so a signal given while the lock was
+	//released is not lost
+	private int signals;
+
+	//most bushels, of all grains together, this trader will hold; deliver()
+	//waits on space while a delivery would take it past this, counted in
+	//stalled so that new demand for primary knows to signal it.  waived is
+	//the most bushels a single delivery has put past capacity, and excess
+	//the most the total has been over it, grain taken in by swaps and
+	//steals included; both guarded by the lock
+	private volatile int capacity = Integer.MAX_VALUE;
+	private final Condition space;
+	private volatile int stalled;
+	private volatile int waived;
+	private volatile int excess;
+
+	//deliveries queued by offer() and not yet moved into amounts.  Every
+	//delivery is of primary, so the queue is just their total: suppliers add
+	//to it without the lock, and deliverBatch() takes it all at once
+	private final AtomicInteger inbox = new AtomicInteger();
+
+	//number of get() callers currently waiting for each grain
+	private final AtomicIntegerArray blocked =
+		new AtomicIntegerArray(Grain.values().length);
+
+	//most of each grain that a request waiting here lacks, as of the last
+	//time a request began or stopped waiting; written with the lock held
+	//by relack() and read without it by lacks()
+	private final AtomicIntegerArray lacking =
+		new AtomicIntegerArray(Grain.values().length);
+
+	//a get() or swap() caller waiting for grain, on a Condition of its own
+	//so that it can be woken alone, and whether, when it began to wait,
+	//the primary here could pay for all it is short of.  A caller is woken
+	//when some of its grain is added to amounts, when that grain arrives at
+	//its specialist (nudge()), or when primary comes in that lets it make
+	//progress (signalSwappers())
+	private final class Waiter {
+		final Order order;
+		final Condition ready = lock.newCondition();
+		Grain grain;
+		boolean couldPay;
+
+		Waiter(Order order) {
+			this.order = order;
+		}
+	}
+
+	//the callers currently waiting, guarded by the lock
+	private final ArrayList<Waiter> waiting = new ArrayList<Waiter>();
+
+	//orders from getAsync() that could not be filled yet; the policy decides
+	//which of them are filled first when stock arrives
+	private final FillPolicy pending;
+
+	//where every change to amounts is recorded, or null
+	private volatile Ledger ledger;
+
+	//checks conservation online, or null; held are this trader's counters in
+	//it, kept equal to amounts and only updated with the lock held
+	private volatile ConservationMonitor monitor;
+	private LongAdder[] held;
+
+	//latency histograms and counters for this trader
+	private final TraderMetrics metrics = new TraderMetrics();
+
+	//sources grains other than primary from the other specialists, or null
+	private volatile SwapNegotiator negotiator;
+
+	//primary set aside by negotiate() for swaps under way, and whether a
+	//trySwap() from another trader got less primary than it wanted
+	//meanwhile; both guarded by the lock.  Only then is putting back what a
+	//swap did not use worth waking anyone for.  A caller here that finds
+	//the surplus set aside is not counted: it and the one setting it aside
+	//would only take turns failing against the same empty specialists
+	private int aside;
+	private boolean turnedAway;
+
 
 	public TraderImpl(Grain prim) {
+		this(prim, new FillPolicy.Fifo());
+	}
+
+	public TraderImpl(Grain prim, FillPolicy policy) {
 		this.primary = prim;
-		this.barleyNeeded = 0;
-		this.cornNeeded = 0;
-		this.wheatNeeded = 0;
-		this.riceNeeded = 0;
 		this.amounts = new Order();
+		this.lock = new ReentrantLock();
+		this.pending = policy;
+		this.space = lock.newCondition();
 	}
 
 	/** Reports on the total amount of resources held by this Trader.
@@ -34,6 +124,44 @@ public class TraderImpl implements Trader{
 		return this.amounts;
 	}
 
+	/** Returns this trader's performance metrics.
+	 * @return the metrics.
+	 */
+	public TraderMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	//takes the lock, counting the times it was already held
+	private void lock() {
+		if (!lock.tryLock()) {
+			metrics.contended.increment();
+			lock.lock();
+		}
+	}
+
+	//takes the lock interruptibly, counting the times it was already held
+	private void lockInterruptibly() throws InterruptedException {
+		if (!lock.tryLock()) {
+			metrics.contended.increment();
+			lock.lockInterruptibly();
+		}
+	}
+
+	/** Copies the amount of each grain held into "into" without taking the
+	 * lock or allocating.  The copy is a consistent snapshot: it never
+	 * reflects part of a change.
+	 * @param into the Order to fill in.
+	 * @return into.
+	 */
+	public Order snapshot(Order into) {
+		long v;
+		do {
+			v = seq.readBegin();
+			into.setAll(this.amounts);
+		} while (!seq.validate(v));
+		return into;
+	}
+
 	/** A request from a brewer.
 	 * The caller is blocked until the request can be completely filled.
 	 * @param order the number of bushels needed of each type of grain.
@@ -41,22 +169,722 @@ public class TraderImpl implements Trader{
 	 *            waiting for the order to be filled.
 	 */
 	public void get(Order order) throws InterruptedException {
-		this.barleyNeeded = order.get(Grain.BARLEY);
-		this.riceNeeded = order.get(Grain.RICE);
-		this.cornNeeded = order.get(Grain.CORN);
-		this.wheatNeeded = order.get(Grain.WHEAT);
-		if	(this.wheatNeeded <= this.amounts.get(Grain.WHEAT) && 
-			 this.riceNeeded <= this.amounts.get(Grain.RICE) &&
-			 this.cornNeeded <= this.amounts.get(Grain.CORN) && 
-			 this.barleyNeeded <= this.amounts.get(Grain.BARLEY)){
-			this.amounts.change(Grain.BARLEY, (-1*order.get(Grain.BARLEY)));
-			this.amounts.change(Grain.RICE, (-1*order.get(Grain.RICE)));
-			this.amounts.change(Grain.CORN, (-1*order.get(Grain.CORN)));
-			this.amounts.change(Grain.WHEAT, (-1*order.get(Grain.WHEAT)));
+		TraderEvents.Get event = new TraderEvents.Get();
+		event.begin();
+		long start = System.nanoTime();
+		Grain firstShort = null;
+		boolean woke = false;
+		Waiter w = null;
+		lockInterruptibly();
+		try {
+			Grain shortOf;
+			while ((shortOf = this.amounts.shortage(order)) != null) {
+				if (firstShort == null) {
+					firstShort = shortOf;
+				}
+				if (woke) {
+					metrics.retries.increment();
+					woke = false;
+				}
+				SwapNegotiator n = this.negotiator;
+				boolean swapping = n != null
+					&& (shortOf != primary || n.canSteal());
+				//counted before negotiating, so that a nudge() for grain
+				//arriving meanwhile is not passed over
+				blocked.incrementAndGet(shortOf.ordinal());
+				if (w == null) {
+					w = new Waiter(order);
+				}
+				await(w, shortOf);
+				try {
+					int seen = this.signals;
+					if (swapping && negotiate(order)) {
+						continue;
+					}
+					if (stalled > 0
+							&& FillPolicy.needs(order, primary, this.amounts)) {
+						space.signalAll();
+					}
+					if (shortOf != primary && n != null && n.stalled(shortOf)) {
+						lock.unlock();
+						try {
+							n.wanted(shortOf);
+						} finally {
+							lock();
+						}
+					}
+					if (this.signals == seen) {
+						w.ready.await();
+						woke = true;
+					}
+				} finally {
+					blocked.decrementAndGet(shortOf.ordinal());
+					waiting.remove(w);
+					relack();
+				}
+			}
+			take(order);
+		} catch (InterruptedException e) {
+			commit(event, order, firstShort, false);
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+		long elapsed = System.nanoTime() - start;
+		metrics.getLatency.record(elapsed);
+		if (firstShort == null) {
+			metrics.immediate.increment();
 		} else {
-			throw new InterruptedException();
+			metrics.grainWait.get(firstShort).record(elapsed);
 		}
+		commit(event, order, firstShort, true);
+	}
+
 
+	//commits a get() event if the recording wants it
+	private void commit(TraderEvents.Get event, Order order, Grain shortOf,
+			boolean filled) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.trader = primary.name();
+			event.bushels = order.total();
+			event.filled = filled;
+			event.shortOf = shortOf == null ? null : shortOf.name();
+			event.commit();
+		}
+	}
+
+	//commits a swap event if the recording wants it
+	private void commit(TraderEvents.Swap event, Grain what, int amt) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.trader = primary.name();
+			event.grain = what.name();
+			event.bushels = amt;
+			event.commit();
+		}
+	}
+
+	//commits a delivery event if the recording wants it
+	private void commit(TraderEvents.Deliver event, int amt, boolean accepted,
+			boolean batched) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.trader = primary.name();
+			event.bushels = amt;
+			event.accepted = accepted;
+			event.batched = batched;
+			event.commit();
+		}
+	}
+
+	/** Lets this trader swap its primary grain for other grains it is short
+	 * of when filling an order.
+	 * @param negotiator the negotiator to use, or null to stop swapping.
+	 */
+	public void setNegotiator(SwapNegotiator negotiator) {
+		this.negotiator = negotiator;
+	}
+
+	/** Tries to make up the shortfall of "order" in every grain other than
+	 * primary by swapping surplus primary grain with the specialists, without
+	 * waiting for them.  The surplus offered is set aside before the lock is
+	 * released for the swap and whatever is not swapped is put back, so the
+	 * inventory stays consistent.  Must be called with the lock held; the
+	 * lock is released during each swap and held again on return.
+	 * @param order the order being filled.
+	 * @return true if any grain was obtained.
+	 */
+	private boolean negotiate(Order order) {
+		SwapNegotiator n = this.negotiator;
+		boolean gotAny = false;
+		for (Grain g : Grain.values()) {
+			if (g == primary || n == null) {
+				continue;
+			}
+			int want = Math.min(order.get(g) - this.amounts.get(g),
+				this.amounts.get(primary) - order.get(primary));
+			if (want <= 0) {
+				continue;
+			}
+			begin();
+			seq.beginWrite();
+			move(primary, -want);
+			seq.endWrite();
+			aside += want;
+			int got = 0;
+			lock.unlock();
+			try {
+				got = n.acquire(primary, g, want);
+			} finally {
+				lock();
+				aside -= want;
+				seq.beginWrite();
+				move(primary, want - got);
+				move(g, got);
+				seq.endWrite();
+				end();
+				if (got > 0) {
+					record(Ledger.SWAP, g, got, null);
+				}
+			}
+			if (got > 0) {
+				gotAny = true;
+				signalArrived(g);
+			}
+			if (got < want) {
+				//a caller that found the primary set aside short of its
+				//own order waits for it without negotiating, so is woken
+				//now; not counted in signals, or the caller that put it
+				//back would go straight round again
+				wake(primary);
+			}
+			if (got < want && turnedAway) {
+				//the primary set aside is back for the swaps that went
+				//without it
+				turnedAway = false;
+				signalSwappers();
+				lock.unlock();
+				try {
+					n.supplied(primary);
+				} finally {
+					lock();
+				}
+			}
+		}
+		if (n != null && n.canSteal()) {
+			//whatever swapping at home could not supply, take from the
+			//sibling markets
+			for (Grain g : Grain.values()) {
+				int want = order.get(g) - this.amounts.get(g);
+				if (want <= 0) {
+					continue;
+				}
+				int got = 0;
+				begin();
+				lock.unlock();
+				try {
+					got = n.steal(g, want);
+				} finally {
+					lock();
+					seq.beginWrite();
+					move(g, got);
+					seq.endWrite();
+					end();
+				}
+				if (got > 0) {
+					gotAny = true;
+					signalArrived(g);
+				}
+			}
+		}
+		return gotAny;
+	}
+
+	//wakes the callers waiting for g; must hold the lock
+	private void signalArrived(Grain g) {
+		this.signals++;
+		wake(g);
+	}
+
+	//wakes the callers waiting for g without counting it in signals; must
+	//hold the lock
+	private void wake(Grain g) {
+		for (Waiter w : waiting) {
+			if (w.grain == g) {
+				w.ready.signal();
+			}
+		}
+	}
+
+	//whether the primary here, with what swaps under way have set aside,
+	//can pay for all of order that is short; must hold the lock
+	private boolean canPay(Order order) {
+		return negotiator != null
+			&& !FillPolicy.needs(order, primary, this.amounts, aside);
+	}
+
+	//notes that w is about to wait for g; must hold the lock, and remove w
+	//from waiting once it stops
+	private void await(Waiter w, Grain g) {
+		w.grain = g;
+		w.couldPay = canPay(w.order);
+		waiting.add(w);
+		relack();
+	}
+
+	//brings lacking up to date with the requests waiting here; must hold
+	//the lock
+	private void relack() {
+		for (Grain g : Grain.values()) {
+			int most = pending.lacks(g, this.amounts);
+			for (Waiter w : waiting) {
+				most = Math.max(most, w.order.get(g) - this.amounts.get(g));
+			}
+			lacking.set(g.ordinal(), most);
+		}
+	}
+
+	//wakes, now that primary has arrived, only the waiting callers it lets
+	//make progress: those whose awaited grain is now covered, and those
+	//that could not pay for their swaps when they began to wait but now
+	//can.  One that could already pay is waiting for a specialist to get
+	//the grain, not for primary, and one that still cannot would only swap
+	//part of its shortfall and wait again.  Must hold the lock
+	private void signalSwappers() {
+		boolean woken = false;
+		for (Waiter w : waiting) {
+			if (w.order.get(w.grain) <= this.amounts.get(w.grain)
+					|| (!w.couldPay && canPay(w.order))) {
+				w.ready.signal();
+				woken = true;
+			}
+		}
+		if (woken) {
+			this.signals++;
+		}
+	}
+
+	//wakes the callers waiting for g that can get it now it has arrived at
+	//its specialist: those that can steal or pay for their swaps.  One
+	//that cannot pay is marked so that signalSwappers() wakes it once it
+	//can.  Must hold the lock
+	private void signalNudged(Grain g) {
+		SwapNegotiator n = this.negotiator;
+		boolean steal = n != null && n.canSteal();
+		boolean woken = false;
+		for (Waiter w : waiting) {
+			if (w.grain != g) {
+				continue;
+			}
+			if (steal || canPay(w.order)) {
+				w.ready.signal();
+				woken = true;
+			} else {
+				w.couldPay = false;
+			}
+		}
+		if (woken) {
+			this.signals++;
+		}
+	}
+
+	/** Tells this trader that grain g has arrived somewhere it may be
+	 * swapped or stolen from, so that the requests here short of it try
+	 * again.  Returns at once if none is waiting for g.  Must be called
+	 * without holding any trader's lock.
+	 * @param g the grain.
+	 */
+	public void nudge(Grain g) {
+		if (blocked.get(g.ordinal()) == 0 && pending.demand(g) == 0) {
+			return;
+		}
+		ArrayList<PendingOrder> filled = null;
+		lock();
+		try {
+			signalNudged(g);
+			PendingOrder head = pending.head();
+			if (head != null && negotiator != null && negotiate(head.order)) {
+				filled = fillPending();
+			}
+		} finally {
+			lock.unlock();
+		}
+		complete(filled);
+	}
+
+	/** Tells this trader that a request elsewhere has become short of its
+	 * specialty, so that a delivery waiting for room may now be let in.
+	 * Must be called without holding any trader's lock.
+	 */
+	public void demandRose() {
+		if (stalled > 0) {
+			lock();
+			try {
+				space.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** Indicates whether a delivery is waiting for room here.
+	 * @return true if deliver() is waiting.
+	 */
+	public boolean isStalled() {
+		return stalled > 0;
+	}
+
+	/** Records every later change to this trader's inventory in "ledger",
+	 * starting with a checkpoint of the current inventory.
+	 * @param ledger the ledger, or null to stop recording.
+	 */
+	public void setLedger(Ledger ledger) {
+		lock();
+		try {
+			this.ledger = ledger;
+			record(Ledger.CHECKPOINT, null, 0, settled());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Reports every later change to this trader's inventory to "monitor".
+	 * @param monitor the monitor.
+	 */
+	public void setMonitor(ConservationMonitor monitor) {
+		lock();
+		try {
+			this.held = monitor.register(this, this.amounts);
+			this.monitor = monitor;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Checks that the counters reported to the monitor match the actual
+	 * inventory.
+	 * @return a grain whose count does not match, or null if all match.
+	 */
+	public Grain audit() {
+		lock();
+		try {
+			if (held != null) {
+				for (Grain g : Grain.values()) {
+					if (this.amounts.get(g) != held[g.ordinal()].sum()) {
+						return g;
+					}
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Records the current inventory in the ledger, so that recovery need
+	 * only replay the records after it.
+	 */
+	public void checkpoint() {
+		lock();
+		try {
+			record(Ledger.CHECKPOINT, null, 0, settled());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//the inventory as the ledger sees it: amounts with the primary set aside
+	//by negotiate() added back, since a swap is recorded only once it is
+	//settled and replay must not lose what is still out; must hold the lock
+	private Order settled() {
+		Order o = this.amounts.copy();
+		o.change(primary, aside);
+		return o;
+	}
+
+	//appends a record about this trader to the ledger, if there is one;
+	//must be called with the lock held, right after the change it records
+	private void record(int type, Grain grain, int amount, Order order) {
+		Ledger l = this.ledger;
+		if (l != null) {
+			l.append(type, primary, grain, amount, order);
+		}
+	}
+
+	//marks the start and end of a movement the monitor, if any, must not
+	//see only part of
+	private void begin() {
+		if (monitor != null) {
+			monitor.begin();
+		}
+	}
+
+	private void end() {
+		if (monitor != null) {
+			monitor.end();
+		}
+	}
+
+	//changes the amount of g by n; must hold the lock and be inside
+	//seq.beginWrite/endWrite
+	private void move(Grain g, int n) {
+		this.amounts.change(g, n);
+		if (n > 0 && capacity != Integer.MAX_VALUE) {
+			excess = Math.max(excess, this.amounts.total() - capacity);
+		}
+		if (held != null) {
+			ConservationMonitor.moved(held, g, n);
+		}
+	}
+
+	//subtracts order from amounts if it is covered; must hold the lock
+	private boolean take(Order order) {
+		boolean covered = this.amounts.covers(order);
+		if (covered) {
+			seq.beginWrite();
+			this.amounts.subtractIfCovered(order);
+			seq.endWrite();
+			metrics.filled.increment();
+			space.signalAll();
+			record(Ledger.GET, null, 0, order);
+			if (held != null) {
+				monitor.taken(held, order);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	//fills what it can of the queued getAsync() orders; must hold the lock
+	private ArrayList<PendingOrder> fillPending() {
+		ArrayList<PendingOrder> filled = pending.fill(this.amounts, seq);
+		relack();
+		if (filled != null) {
+			space.signalAll();
+			for (PendingOrder p : filled) {
+				record(Ledger.GET, null, 0, p.order);
+				if (held != null) {
+					monitor.taken(held, p.order);
+				}
+			}
+		}
+		return filled;
+	}
+
+	/** Limits the total number of bushels this trader holds.  Deliveries
+	 * that would exceed the limit wait in deliver(), or are refused by
+	 * tryDeliver(), until brewers have taken enough grain.
+	 * @param capacity the limit, or Integer.MAX_VALUE for none.
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/** Returns the most bushels a single delivery has put this trader
+	 * over its capacity.  Only a delivery to an empty trader, or one a
+	 * waiting request lacks, goes over, and then by no more than that
+	 * request's shortfall of primary.
+	 * @return the peak overshoot, or 0 if no delivery went over.
+	 */
+	public int peakOvershoot() {
+		return waived;
+	}
+
+	/** Returns the most bushels this trader has held over its capacity.
+	 * Swaps keep the total fixed, so grain swapped in for primary that was
+	 * delivered over the capacity stays over it until brewers take it;
+	 * this is bounded only by what the brewers here consume.
+	 * @return the peak excess, or 0 if the total never went over.
+	 */
+	public int peakExcess() {
+		return excess;
+	}
+
+	/** Reports how many bushels of grain "g" a request waiting here lacks
+	 * at most.  Read without the lock, so only approximate.
+	 * @param g the grain.
+	 * @return the largest lack, or 0 if none is short of g.
+	 */
+	public int lacks(Grain g) {
+		return Math.max(0, lacking.get(g.ordinal()));
+	}
+
+	/** Indicates whether a delivery of "amt" would have to wait for all of
+	 * it.
+	 * @param amt the size of the delivery.
+	 * @return true if the trader is too full to accept any of it now.
+	 */
+	public boolean isFull(int amt) {
+		lock();
+		try {
+			return amt > 0 && room(amt) == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Reports how much demand for grain "g" is waiting at this trader: the
+	 * number of blocked get() callers and queued getAsync() orders that are
+	 * short of it.  Read without the lock, so only approximate.
+	 * @param g the grain.
+	 * @return the number of waiting requests short of g.
+	 */
+	public int demand(Grain g) {
+		return blocked.get(g.ordinal()) + pending.demand(g);
+	}
+
+	/** Returns the policy used to fill queued getAsync() orders.
+	 * @return the policy.
+	 */
+	public FillPolicy getFillPolicy() {
+		return this.pending;
+	}
+
+	/** Fills a request from a brewer only if it can be filled right now.
+	 * Never blocks waiting for grain.
+	 * @param order the number of bushels needed of each type of grain.
+	 * @return true if the order was filled, false if nothing was taken.
+	 */
+	public boolean tryGet(Order order) {
+		lock();
+		try {
+			return immediate(take(order));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//counts a fill that did not wait, if filled
+	private boolean immediate(boolean filled) {
+		if (filled) {
+			metrics.immediate.increment();
+		}
+		return filled;
+	}
+
+	/** Fills a request from a brewer only if it can be filled right now,
+	 * swapping for the grains this Trader is short of as get() would.
+	 * Never blocks waiting for grain; whatever the swaps obtained stays in
+	 * stock if the order still cannot be filled.
+	 * @param order the number of bushels needed of each type of grain.
+	 * @return true if the order was filled, false if nothing was taken.
+	 */
+	public boolean tryGetOrSwap(Order order) {
+		lock();
+		try {
+			return immediate(takeOrSwap(order));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//takes order, swapping for what is short if need be; must hold the lock
+	private boolean takeOrSwap(Order order) {
+		return take(order)
+			|| (negotiator != null && negotiate(order) && take(order));
+	}
+
+	/** A request from a brewer that does not block the caller.
+	 * If the order cannot be filled right away it is queued, and a later
+	 * deliver() or swap() fills it and completes the future.
+	 * @param order the number of bushels needed of each type of grain.
+	 * @return a future completed with order when it has been filled.
+	 */
+	public CompletableFuture<Order> getAsync(Order order) {
+		PendingOrder p;
+		Grain shortOf;
+		ArrayList<PendingOrder> filled = null;
+		lock();
+		try {
+			if (immediate(take(order))) {
+				return CompletableFuture.completedFuture(order);
+			}
+			//queued before negotiating, so that a nudge() while the lock is
+			//released sees the demand
+			p = pending.add(order, this.amounts);
+			relack();
+			shortOf = p.shortOf;
+			if (negotiator != null && negotiate(order)) {
+				filled = fillPending();
+			}
+		} finally {
+			lock.unlock();
+		}
+		complete(filled);
+		if (!p.future.isDone()) {
+			wanted(shortOf);
+		}
+		return p.future;
+	}
+
+	//tells the specialist in g that a request here is short of it, and a
+	//delivery here that the request may need to pay for swaps; must be
+	//called without the lock
+	private void wanted(Grain g) {
+		SwapNegotiator n = this.negotiator;
+		demandRose();
+		if (g != primary && n != null) {
+			n.wanted(g);
+		}
+	}
+
+	/** Completes the futures of orders taken by the fill policy.  Must be
+	 * called without the lock held, since completing a future runs the
+	 * caller's dependent actions, and counts them as filled after waiting.
+	 * An order whose future was cancelled in the meantime is put back into
+	 * stock.
+	 * @param filled the orders filled, or null.
+	 */
+	private void complete(ArrayList<PendingOrder> filled) {
+		while (filled != null) {
+			Order returned = null;
+			long now = System.nanoTime();
+			for (PendingOrder p : filled) {
+				if (p.future.complete(p.order)) {
+					metrics.filled.increment();
+					if (p.shortOf != null) {
+						metrics.grainWait.get(p.shortOf).record(now - p.queuedAt);
+					}
+				} else {
+					if (returned == null) {
+						returned = new Order();
+					}
+					returned.addAll(p.order);
+				}
+			}
+			if (returned == null) {
+				return;
+			}
+			filled = putBack(returned);
+		}
+	}
+
+	/** Takes back an order this trader filled that the caller could not
+	 * use, such as one part of a split order given up half way.
+	 * @param order the order, exactly as it was filled.
+	 * @return true.
+	 */
+	public boolean restock(Order order) {
+		complete(putBack(order));
+		return true;
+	}
+
+	//adds an order taken from here back into stock and tells whoever is
+	//waiting for its grain; must be called without the lock.  Returns the
+	//queued orders it let through, for complete()
+	private ArrayList<PendingOrder> putBack(Order returned) {
+		ArrayList<PendingOrder> filled;
+		lock();
+		try {
+			seq.beginWrite();
+			this.amounts.addAll(returned);
+			seq.endWrite();
+			record(Ledger.RETURN, null, 0, returned);
+			if (held != null) {
+				monitor.returned(held, returned);
+			}
+			for (Grain g : Grain.values()) {
+				if (returned.get(g) > 0) {
+					signalArrived(g);
+				}
+			}
+			if (returned.get(primary) > 0) {
+				signalSwappers();
+			}
+			filled = fillPending();
+		} finally {
+			lock.unlock();
+		}
+		SwapNegotiator n = this.negotiator;
+		if (n != null) {
+			for (Grain g : Grain.values()) {
+				if (returned.get(g) > 0) {
+					n.supplied(g);
+				}
+			}
+		}
+		return filled;
 	}
 
 	/** Responds to a swap request from another Trader.
@@ -69,23 +897,281 @@ public class TraderImpl implements Trader{
 	 *            waiting for the swap to succeed.
 	 */
 	public void swap(Grain what, int amt) throws InterruptedException {
-		if (this.amounts.get(primary) < amt){
-			throw new InterruptedException(); 
-		} else {
-			this.amounts.change(what, amt);
-			this.amounts.change(primary, (-1*amt));
+		TraderEvents.Swap event = new TraderEvents.Swap();
+		event.begin();
+		long start = System.nanoTime();
+		ArrayList<PendingOrder> filled = null;
+		lockInterruptibly();
+		try {
+			if (this.amounts.get(primary) < amt) {
+				Order want = new Order();
+				want.set(primary, amt);
+				Waiter w = new Waiter(want);
+				await(w, primary);
+				try {
+					while (this.amounts.get(primary) < amt) {
+						w.ready.await();
+					}
+				} finally {
+					waiting.remove(w);
+					relack();
+				}
+			}
+			begin();
+			seq.beginWrite();
+			move(what, amt);
+			move(primary, (-1*amt));
+			seq.endWrite();
+			end();
+			record(Ledger.SWAP, what, amt, null);
+			if (what != primary && amt > 0) {
+				filled = fillPending();
+				signalArrived(what);
+			}
+		} finally {
+			lock.unlock();
 		}
+		complete(filled);
+		metrics.swapLatency.record(System.nanoTime() - start);
+		commit(event, what, amt);
+	}
 
+	/** Responds to a swap request from another Trader without waiting.
+	 * Swaps as much as this Trader's stock of its specialty allows right now,
+	 * up to "amt".
+	 * @param what the type of grain the other Trader is offering.
+	 * @param amt the most bushels to swap.
+	 * @return the number of bushels swapped.
+	 */
+	public int trySwap(Grain what, int amt) {
+		TraderEvents.Swap event = new TraderEvents.Swap();
+		event.begin();
+		long start = System.nanoTime();
+		ArrayList<PendingOrder> filled = null;
+		int n = 0;
+		lock();
+		try {
+			if (what != primary) {
+				n = Math.min(amt, this.amounts.get(primary));
+				if (n < amt && aside > 0) {
+					turnedAway = true;
+				}
+			}
+			if (n > 0) {
+				begin();
+				seq.beginWrite();
+				move(what, n);
+				move(primary, -n);
+				seq.endWrite();
+				end();
+				record(Ledger.SWAP, what, n, null);
+				filled = fillPending();
+				signalArrived(what);
+			}
+		} finally {
+			lock.unlock();
+		}
+		complete(filled);
+		metrics.swapLatency.record(System.nanoTime() - start);
+		commit(event, what, n);
+		return n;
+	}
+
+	/** Gives "amt" bushels of "what" to a trader in another market,
+	 * without waiting and without anything in return.  All or nothing:
+	 * markets taking partial amounts from each other would only pass the
+	 * same grain back and forth.  Nothing is given while requests at this
+	 * trader are short of "what" themselves.
+	 * @param what the grain wanted.
+	 * @param amt the number of bushels wanted.
+	 * @return amt if the grain was given, otherwise 0.
+	 */
+	public int trySteal(Grain what, int amt) {
+		lock();
+		try {
+			if (amt <= 0 || demand(what) > 0 || this.amounts.get(what) < amt) {
+				return 0;
+			}
+			seq.beginWrite();
+			move(what, -amt);
+			seq.endWrite();
+			space.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return amt;
 	}
 
 	/** Accepts a delivery from the supplier.
 	 * The supplier calls this method to deliver some of this Trader's
-	 * specialty grain.
+	 * specialty grain.  A bounded trader may take it in parts, as room is
+	 * made; if the caller is interrupted, the parts already taken stay.
 	 * @param amt the number of bushels of this Trader's specialty
 	 *               being delivered.
 	 */
-	public void deliver(int amt) {
-		this.amounts.change(this.primary, amt);
+	public void deliver(int amt) throws InterruptedException {
+		TraderEvents.Deliver event = new TraderEvents.Deliver();
+		event.begin();
+		long start = System.nanoTime();
+		int left = amt;
+		do {
+			int part;
+			lockInterruptibly();
+			try {
+				if ((part = room(left)) == 0 && left > 0) {
+					//counted before room() is checked again, so that demand
+					//for primary arising from now on signals space
+					stalled++;
+					try {
+						while ((part = room(left)) == 0) {
+							space.await();
+						}
+					} finally {
+						stalled--;
+					}
+				}
+			} catch (InterruptedException e) {
+				lock.unlock();
+				throw e;
+			}
+			accept(part);
+			left -= part;
+		} while (left > 0);
+		metrics.deliverLatency.record(System.nanoTime() - start);
+		commit(event, amt, true, false);
+	}
+
+	/** Accepts a delivery from the supplier only if this Trader has room
+	 * for it; never waits.
+	 * @param amt the number of bushels of this Trader's specialty
+	 *               being delivered.
+	 * @return true if the delivery was accepted, false if it would take
+	 *               the inventory past its capacity.
+	 */
+	public boolean tryDeliver(int amt) {
+		return tryAccept(amt, false) == amt;
+	}
+
+	//accepts as much of a delivery as room() allows, or, unless partial,
+	//nothing if that is not all of it; never waits.  Returns the number
+	//of bushels accepted
+	private int tryAccept(int amt, boolean partial) {
+		TraderEvents.Deliver event = new TraderEvents.Deliver();
+		event.begin();
+		lock();
+		int part = room(amt);
+		if (partial ? part == 0 && amt > 0 : part < amt) {
+			lock.unlock();
+			commit(event, amt, false, false);
+			return 0;
+		}
+		accept(part);
+		commit(event, part, true, false);
+		return part;
+	}
+
+	/** Queues a delivery from a supplier without waiting for the lock.
+	 * The supplier that queues into an empty inbox drains it with
+	 * deliverBatch(), taking in whatever other suppliers queue meanwhile
+	 * under the same acquisition of the lock; the others return at once.
+	 * A bounded trader has to weigh every delivery against its stock, and
+	 * a monitored one must not hold grain that no counter shows, so they
+	 * take what room they have, as tryDeliver() would, but may take only
+	 * part of the delivery; the supplier offers the rest again later.
+	 * @param amt the number of bushels of this Trader's specialty
+	 *               being delivered.
+	 * @return the number of bushels accepted, from 0 if the inventory is
+	 *               at its capacity up to amt.
+	 */
+	public int offer(int amt) {
+		if (capacity != Integer.MAX_VALUE || monitor != null) {
+			return tryAccept(amt, true);
+		}
+		long start = System.nanoTime();
+		metrics.queued.increment();
+		if (inbox.getAndAdd(amt) == 0) {
+			deliverBatch();
+		}
+		metrics.deliverLatency.record(System.nanoTime() - start);
+		return amt;
+	}
+
+	/** Moves every delivery queued by offer() into stock as one delivery.
+	 * @return the number of bushels moved.
+	 */
+	public int deliverBatch() {
+		TraderEvents.Deliver event = new TraderEvents.Deliver();
+		event.begin();
+		lock();
+		int amt = inbox.getAndSet(0);
+		if (amt == 0) {
+			lock.unlock();
+			return 0;
+		}
+		metrics.batches.increment();
+		accept(amt);
+		commit(event, amt, true, true);
+		return amt;
+	}
+
+	//how much of a delivery of amt may be accepted now.  All of it if it
+	//fits, or if the trader is empty, so that a delivery larger than the
+	//capacity cannot block forever.  Otherwise the capacity is waived only
+	//for what a waiting request actually lacks of primary, since swaps
+	//keep a trader's total fixed and only new grain can then let it
+	//proceed: the largest shortfall of a request here, counting what it
+	//must pay for its swaps (FillPolicy.shortfall()), or of one elsewhere
+	//in the market beyond the primary held here to swap.  A delivery thus
+	//never puts the total more than that shortfall past the capacity, or
+	//past where it already was.  Must hold the lock
+	private int room(int amt) {
+		int total = this.amounts.total();
+		if (total == 0 || total + amt <= capacity) {
+			return amt;
+		}
+		int most = pending.shortfall(primary, this.amounts);
+		for (Waiter w : waiting) {
+			most = Math.max(most,
+				FillPolicy.shortfall(w.order, primary, this.amounts));
+		}
+		SwapNegotiator n = this.negotiator;
+		if (n != null) {
+			most = Math.max(most,
+				n.lacks(primary) - this.amounts.get(primary));
+		}
+		return Math.min(amt, Math.max(0, capacity - total) + most);
+	}
+
+	//adds a delivery to the inventory and fills what it can; must be called
+	//with the lock held, and releases it
+	private void accept(int amt) {
+		ArrayList<PendingOrder> filled = null;
+		try {
+			if (capacity != Integer.MAX_VALUE) {
+				int total = this.amounts.total();
+				waived = Math.max(waived,
+					total + amt - Math.max(total, capacity));
+			}
+			seq.beginWrite();
+			move(this.primary, amt);
+			seq.endWrite();
+			record(Ledger.DELIVER, null, amt, null);
+			if (amt > 0) {
+				PendingOrder head = pending.head();
+				if (head != null && negotiator != null) {
+					negotiate(head.order);
+				}
+				filled = fillPending();
+				signalSwappers();
+			}
+		} finally {
+			lock.unlock();
+		}
+		complete(filled);
+		SwapNegotiator n = this.negotiator;
+		if (amt > 0 && n != null) {
+			n.supplied(primary);
+		}
 	}
 
 }
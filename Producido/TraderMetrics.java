@@ -0,0 +1,100 @@
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Low-overhead performance counters for one trader: latency histograms of
+ * its operations, wait times broken down by the grain that was short, and
+ * counts of fills, retries and lock contention.
+ */
+public class TraderMetrics {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Time spent in get(), from entry to the order being filled. */
+    final Histogram getLatency = new Histogram();
+
+    /** Time spent in swap() and trySwap(). */
+    final Histogram swapLatency = new Histogram();
+
+    /** Time spent in deliver() and offer(). */
+    final Histogram deliverLatency = new Histogram();
+
+    /** Time get() callers and queued getAsync() orders spent waiting,
+     * keyed by the first grain they were short of.
+     */
+    final EnumMap<Grain, Histogram> grainWait =
+        new EnumMap<Grain, Histogram>(Grain.class);
+
+    /** Number of orders filled, by get(), tryGet() or getAsync(). */
+    final LongAdder filled = new LongAdder();
+
+    /** Number of those filled without waiting. */
+    final LongAdder immediate = new LongAdder();
+
+    /** Number of times a get() caller woke up and still could not be
+     * filled; going straight round again after a swap is not counted.
+     */
+    final LongAdder retries = new LongAdder();
+
+    /** Number of deliveries queued by offer(). */
+    final LongAdder queued = new LongAdder();
+
+    /** Number of batches deliverBatch() moved them into stock in. */
+    final LongAdder batches = new LongAdder();
+
+    /** Number of times the trader's lock was already held when requested. */
+    final LongAdder contended = new LongAdder();
+
+    /** Creates an empty set of metrics. */
+    public TraderMetrics() {
+        for (Grain g : Grain.values()) {
+            grainWait.put(g, new Histogram());
+        }
+    } // TraderMetrics()
+
+    /** Prints a percentile report for the trader named "name".
+     * @param out where to print.
+     * @param name the trader's name.
+     */
+    public void report(PrintStream out, String name) {
+        long f = filled.sum();
+        out.printf("%s trader: filled = %d (%.1f%% without waiting),"
+                + " retries = %d, lock contended = %d%n",
+            name, f, f == 0 ? 0.0 : 100.0 * immediate.sum() / f,
+            retries.sum(), contended.sum());
+        out.printf("    get:     %s%n", getLatency);
+        out.printf("    swap:    %s%n", swapLatency);
+        out.printf("    deliver: %s%n", deliverLatency);
+        if (queued.sum() > 0) {
+            out.printf("    queued:  %d deliveries in %d batches%n",
+                queued.sum(), batches.sum());
+        }
+        for (Grain g : Grain.values()) {
+            Histogram h = grainWait.get(g);
+            if (h.count() > 0) {
+                out.printf("    waited for %s: %s%n", g, h);
+            }
+        }
+    } // report(PrintStream,String)
+
+    /** Writes this trader's metrics as CSV rows of the form
+     * trader,metric,count,p50_ns,p99_ns,p999_ns (counters leave the
+     * percentile fields empty).
+     * @param out where to write.
+     * @param name the trader's name.
+     */
+    public void writeCsv(PrintStream out, String name) {
+        out.printf("%s,get,%s%n", name, getLatency.toCsv());
+        out.printf("%s,swap,%s%n", name, swapLatency.toCsv());
+        out.printf("%s,deliver,%s%n", name, deliverLatency.toCsv());
+        for (Grain g : Grain.values()) {
+            out.printf("%s,wait_%s,%s%n", name, g, grainWait.get(g).toCsv());
+        }
+        out.printf("%s,filled,%d,,,%n", name, filled.sum());
+        out.printf("%s,immediate,%d,,,%n", name, immediate.sum());
+        out.printf("%s,retries,%d,,,%n", name, retries.sum());
+        out.printf("%s,contended,%d,,,%n", name, contended.sum());
+        out.printf("%s,queued,%d,,,%n", name, queued.sum());
+        out.printf("%s,batches,%d,,,%n", name, batches.sum());
+    } // writeCsv(PrintStream,String)
+} // TraderMetrics
@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+
+/** The binary protocol spoken between RemoteMarket and TraderServer.
+ * <p>
+ * Every message is a frame: an int giving the length of the rest of the
+ * frame, then a long request id.  A request (client to server) continues
+ * with an op byte and a trader byte (the index of the trader among those
+ * the server hosts), then the op's arguments.  A reply (server to client)
+ * continues with a status byte and, for GET and AMOUNT, an order.  Frames
+ * with id 0 are pushed by the server unprompted (HELLO, SHUTDOWN).  Orders
+ * are a short count followed by that many ints; all values are big-endian,
+ * ByteBuffer's default.
+ * <p>
+ * The client numbers its requests and may send many before the first reply
+ * arrives; the server replies to each as soon as it completes, in whatever
+ * order, and the id matches reply to request.
+ */
+public class TraderProtocol {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Op: get(order).  Arguments: an order.  Reply: the order. */
+    public static final byte GET = 1;
+
+    /** Op: swap(what, amt).  Arguments: grain byte, int amount. */
+    public static final byte SWAP = 2;
+
+    /** Op: deliver(amt).  Arguments: int amount. */
+    public static final byte DELIVER = 3;
+
+    /** Op: snapshot().  No arguments.  Reply: the inventory. */
+    public static final byte AMOUNT = 4;
+
+    /** Op: abandon the GET request with the same id, if still waiting. */
+    public static final byte CANCEL = 5;
+
+    /** Status: the request succeeded. */
+    public static final byte OK = 0;
+
+    /** Status: the request failed. */
+    public static final byte ERROR = 1;
+
+    /** Status: the GET request was cancelled before it was filled. */
+    public static final byte CANCELLED = 2;
+
+    /** Push: the connection is open.  Payload: int node number, int market
+     * the node's brewers should trade at.
+     */
+    public static final byte HELLO = 3;
+
+    /** Push: the run is over; the client should stop and disconnect. */
+    public static final byte SHUTDOWN = 4;
+
+    /** Size of the length field. */
+    public static final int LENGTH = 4;
+
+    /** Size of a request header after the length: id, op, trader. */
+    public static final int REQUEST_HEADER = 8 + 1 + 1;
+
+    /** Size of a reply header after the length: id, status. */
+    public static final int REPLY_HEADER = 8 + 1;
+
+    /** Largest frame either side accepts. */
+    public static final int MAX_FRAME = 1 << 16;
+
+    /** Returns the number of bytes an order takes in a frame.
+     * @param o the order.
+     * @return its encoded size.
+     */
+    public static int orderSize(Order o) {
+        return 2 + 4 * o.size();
+    } // orderSize(Order)
+
+    /** Appends an order to a frame.
+     * @param buf the frame.
+     * @param o the order.
+     */
+    public static void putOrder(ByteBuffer buf, Order o) {
+        buf.putShort((short) o.size());
+        for (int i = 0; i < o.size(); i++) {
+            buf.putInt(o.get(i));
+        }
+    } // putOrder(ByteBuffer,Order)
+
+    /** Reads an order from a frame into "into".
+     * @param buf the frame.
+     * @param into the order to fill in.
+     * @throws IllegalArgumentException if the sizes do not match.
+     */
+    public static void getOrder(ByteBuffer buf, Order into) {
+        int n = buf.getShort();
+        if (n != into.size()) {
+            throw new IllegalArgumentException("order of " + n
+                + " resources, expected " + into.size());
+        }
+        for (int i = 0; i < n; i++) {
+            into.set(i, buf.getInt());
+        }
+    } // getOrder(ByteBuffer,Order)
+
+    /** Allocates a request frame and fills in its header.
+     * @param id the request id.
+     * @param op the op.
+     * @param trader the trader index.
+     * @param args the size of the arguments that will follow.
+     * @return the frame, positioned after the header.
+     */
+    public static ByteBuffer request(long id, byte op, int trader, int args) {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH + REQUEST_HEADER + args);
+        buf.putInt(REQUEST_HEADER + args).putLong(id).put(op).put((byte) trader);
+        return buf;
+    } // request(long,byte,int,int)
+
+    /** Allocates a reply frame and fills in its header.
+     * @param id the request id, or 0 for a push.
+     * @param status the status or push type.
+     * @param body the size of the body that will follow.
+     * @return the frame, positioned after the header.
+     */
+    public static ByteBuffer reply(long id, byte status, int body) {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH + REPLY_HEADER + body);
+        buf.putInt(REPLY_HEADER + body).putLong(id).put(status);
+        return buf;
+    } // reply(long,byte,int)
+
+    /** Removes one complete frame from the front of "in", if there is one.
+     * "in" is in read mode; on return it is in read mode with any partial
+     * frame left at the front.
+     * @param in the bytes received so far.
+     * @return the frame body (after the length field), or null if the
+     *         frame is not complete yet.
+     * @throws IllegalArgumentException if the frame is too long.
+     */
+    public static ByteBuffer nextFrame(ByteBuffer in) {
+        if (in.remaining() < LENGTH) {
+            return null;
+        }
+        int len = in.getInt(in.position());
+        if (len < 0 || len > MAX_FRAME) {
+            throw new IllegalArgumentException("bad frame length " + len);
+        }
+        if (in.remaining() < LENGTH + len) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(len);
+        int end = in.position() + LENGTH + len;
+        ByteBuffer slice = in.duplicate();
+        slice.position(in.position() + LENGTH).limit(end);
+        frame.put(slice).flip();
+        in.position(end);
+        return frame;
+    } // nextFrame(ByteBuffer)
+} // TraderProtocol
@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Serves a set of TraderImpls to other processes over TraderProtocol.
+ * <p>
+ * One selector thread accepts connections, reads requests and writes
+ * replies, never blocking.  GET requests are passed to the trader's
+ * getAsync(), which queues an order it cannot fill at once, so a waiting
+ * order costs no thread; the reply is sent when its future completes.
+ * SWAP and DELIVER may block, and run on a worker pool.  Replies are queued
+ * on their connection and the selector is woken to write them.
+ * <p>
+ * Every order handed to a client counts as consumed (through P2.consumed()),
+ * and shipped() reports the total per client, so the server's books
+ * balance whatever the remote brewers do with it.
+ */
+public class TraderServer implements Runnable {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** One client connection. */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+
+        /** The node number given to the client. */
+        final int node;
+
+        /** Bytes received but not yet parsed, in write mode. */
+        ByteBuffer in = ByteBuffer.allocate(4096);
+
+        /** Replies waiting to be written. */
+        final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** GET requests not yet filled, by request id. */
+        final Map<Long, CompletableFuture<Order>> waiting =
+            new ConcurrentHashMap<Long, CompletableFuture<Order>>();
+
+        /** Total of the orders handed to this client. */
+        final Order shipped = new Order();
+
+        Connection(SocketChannel channel, SelectionKey key, int node) {
+            this.channel = channel;
+            this.key = key;
+            this.node = node;
+        }
+
+        /** Queues a reply and has the selector thread write it. */
+        void send(ByteBuffer reply) {
+            reply.flip();
+            out.add(reply);
+            ready.add(this);
+            selector.wakeup();
+        }
+    } // Connection
+
+    /** The traders served, indexed by the trader byte of a request. */
+    private final List<TraderImpl> traders;
+
+    /** Number of traders in each market, to assign clients to markets. */
+    private final int perMarket;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+
+    /** Runs requests that may block. */
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "TraderServer worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Connections with replies to write. */
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+    /** Every connection ever accepted, in node order. */
+    private final List<Connection> clients =
+        Collections.synchronizedList(new ArrayList<Connection>());
+
+    /** Connections still open. */
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+
+    /** Set once shutdown() has been called. */
+    private volatile boolean closing;
+
+    /** The selector thread. */
+    private Thread thread;
+
+    /** Creates a server on the loopback interface.
+     * @param traders the traders to serve.
+     * @param perMarket how many of them form each market.
+     * @param port the port, or 0 for any free one.
+     * @throws IOException if the port cannot be bound.
+     */
+    public TraderServer(List<TraderImpl> traders, int perMarket, int port)
+            throws IOException {
+        this.traders = traders;
+        this.perMarket = perMarket;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    } // TraderServer(List,int,int)
+
+    /** Returns the port the server is listening on.
+     * @return the port.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    } // getPort()
+
+    /** Starts the selector thread. */
+    public synchronized void start() {
+        thread = new Thread(this, "TraderServer");
+        thread.setDaemon(true);
+        thread.start();
+    } // start()
+
+    /** The selector loop. */
+    public void run() {
+        try {
+            while (!(closing && open.isEmpty())) {
+                selector.select(100);
+                Connection c;
+                while ((c = ready.poll()) != null) {
+                    if (c.key.isValid()) {
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read((Connection) key.attachment());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write((Connection) key.attachment());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // a broken or misbehaving client loses its own
+                        // connection, never the server
+                        close((Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("TraderServer: %s%n", e);
+        } finally {
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    } // run()
+
+    /** Accepts a connection and greets it with its node number and market. */
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        if (closing) {
+            ch.close();
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        int node = clients.size() + 1;
+        Connection c = new Connection(ch, key, node);
+        key.attach(c);
+        clients.add(c);
+        open.add(c);
+        int markets = Math.max(1, traders.size() / perMarket);
+        ByteBuffer hello = TraderProtocol.reply(0, TraderProtocol.HELLO, 8);
+        hello.putInt(node).putInt(node % markets);
+        c.send(hello);
+    } // accept()
+
+    /** Reads what is available and handles every complete request. */
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            close(c);
+            return;
+        }
+        c.in.flip();
+        ByteBuffer frame;
+        while ((frame = TraderProtocol.nextFrame(c.in)) != null) {
+            handle(c, frame);
+        }
+        c.in.compact();
+        if (!c.in.hasRemaining()) {
+            c.in = ByteBuffer.allocate(c.in.capacity() * 2).put(c.in.flip());
+        }
+    } // read(Connection)
+
+    /** Writes queued replies until the socket would block. */
+    private void write(Connection c) throws IOException {
+        ByteBuffer b;
+        while ((b = c.out.peek()) != null) {
+            c.channel.write(b);
+            if (b.hasRemaining()) {
+                return;
+            }
+            c.out.poll();
+        }
+        c.key.interestOps(SelectionKey.OP_READ);
+        if (!c.out.isEmpty()) {
+            ready.add(c);
+        }
+    } // write(Connection)
+
+    /** Carries out one request.  A request naming an unknown op, trader or
+     * grain, or asking for a negative amount, gets an ERROR reply.
+     * @param c the connection it arrived on.
+     * @param f the frame, positioned after the length.
+     * @throws IllegalArgumentException if the frame is too short for its
+     *            op, so the connection can no longer be trusted.
+     */
+    private void handle(final Connection c, ByteBuffer f) {
+        require(f, TraderProtocol.REQUEST_HEADER);
+        final long id = f.getLong();
+        byte op = f.get();
+        int index = f.get();
+        if (op == TraderProtocol.CANCEL) {
+            CompletableFuture<Order> w = c.waiting.get(id);
+            if (w != null) {
+                w.cancel(false);
+            }
+            return;
+        }
+        if (index < 0 || index >= traders.size()) {
+            c.send(TraderProtocol.reply(id, TraderProtocol.ERROR, 0));
+            return;
+        }
+        final TraderImpl t = traders.get(index);
+        switch (op) {
+        case TraderProtocol.GET:
+            Order order = new Order();
+            require(f, TraderProtocol.orderSize(order));
+            TraderProtocol.getOrder(f, order);
+            for (int i = 0; i < order.size(); i++) {
+                if (order.get(i) < 0) {
+                    c.send(TraderProtocol.reply(id, TraderProtocol.ERROR, 0));
+                    return;
+                }
+            }
+            CompletableFuture<Order> done = t.getAsync(order);
+            c.waiting.put(id, done);
+            done.whenComplete((o, e) -> {
+                c.waiting.remove(id);
+                if (e != null) {
+                    c.send(TraderProtocol.reply(id, TraderProtocol.CANCELLED, 0));
+                    return;
+                }
+                synchronized (c.shipped) {
+                    c.shipped.addAll(o);
+                }
+                P2.consumed(t.primary, o);
+                ByteBuffer r = TraderProtocol.reply(id, TraderProtocol.OK,
+                    TraderProtocol.orderSize(o));
+                TraderProtocol.putOrder(r, o);
+                c.send(r);
+            });
+            break;
+        case TraderProtocol.AMOUNT:
+            Order inv = t.snapshot(new Order());
+            ByteBuffer r = TraderProtocol.reply(id, TraderProtocol.OK,
+                TraderProtocol.orderSize(inv));
+            TraderProtocol.putOrder(r, inv);
+            c.send(r);
+            break;
+        case TraderProtocol.SWAP:
+        case TraderProtocol.DELIVER:
+            final boolean swap = op == TraderProtocol.SWAP;
+            require(f, swap ? 1 + 4 : 4);
+            int g = swap ? f.get() : 0;
+            final int amt = f.getInt();
+            if (g < 0 || g >= Grain.values().length || amt < 0) {
+                c.send(TraderProtocol.reply(id, TraderProtocol.ERROR, 0));
+                return;
+            }
+            final Grain what = swap ? Grain.values()[g] : null;
+            workers.execute(() -> {
+                byte status = TraderProtocol.OK;
+                try {
+                    if (swap) {
+                        t.swap(what, amt);
+                    } else {
+                        t.deliver(amt);
+                    }
+                } catch (InterruptedException | RuntimeException e) {
+                    status = TraderProtocol.ERROR;
+                }
+                c.send(TraderProtocol.reply(id, status, 0));
+            });
+            break;
+        default:
+            c.send(TraderProtocol.reply(id, TraderProtocol.ERROR, 0));
+            break;
+        }
+    } // handle(Connection,ByteBuffer)
+
+    /** Checks that a frame has at least "n" more bytes.
+     * @param f the frame.
+     * @param n the number of bytes about to be read.
+     * @throws IllegalArgumentException if it is shorter.
+     */
+    private static void require(ByteBuffer f, int n) {
+        if (f.remaining() < n) {
+            throw new IllegalArgumentException("short frame");
+        }
+    } // require(ByteBuffer,int)
+
+    /** Closes a connection and abandons its waiting orders. */
+    private void close(Connection c) {
+        if (c == null || !open.remove(c)) {
+            return;
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (CompletableFuture<Order> w : c.waiting.values()) {
+            w.cancel(false);
+        }
+    } // close(Connection)
+
+    /** Tells every client the run is over and waits for them to disconnect.
+     * @param timeout the longest to wait, in milliseconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void shutdown(long timeout) throws InterruptedException {
+        closing = true;
+        synchronized (clients) {
+            for (Connection c : clients) {
+                c.send(TraderProtocol.reply(0, TraderProtocol.SHUTDOWN, 0));
+            }
+        }
+        thread.join(timeout);
+        for (Connection c : clients.toArray(new Connection[0])) {
+            close(c);
+        }
+        workers.shutdownNow();
+    } // shutdown(long)
+
+    /** Returns what was handed to each client.
+     * @return shipped()[i] is the total of the orders filled for node i + 1.
+     */
+    public Order[] shipped() {
+        Connection[] cs = clients.toArray(new Connection[0]);
+        Order[] result = new Order[cs.length];
+        for (int i = 0; i < cs.length; i++) {
+            synchronized (cs[i].shipped) {
+                result[i] = cs[i].shipped.copy();
+            }
+        }
+        return result;
+    } // shipped()
+} // TraderServer
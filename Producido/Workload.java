@@ -0,0 +1,242 @@
+import java.util.SplittableRandom;
+
+/** The shape of the load P2 puts on its traders: which grain each request
+ * goes to, how many bushels each order asks for, and how long the supplier
+ * and the brewers pause between steps.
+ * <p>
+ * Every draw takes the caller's own random stream, so a fixed seed still
+ * gives each actor the same sequence however the threads interleave.  The
+ * default profile makes exactly the draws P2 always made: a uniform grain,
+ * 1 to 10 bushels of each grain, and uniform pauses of up to 100 ms
+ * (supplier) and 500 ms (brewers).
+ */
+public class Workload {
+	/** Source version number. */
+	private static final int VERSION = 1;
+
+    /** Names of the arrival processes, as given to setArrivals(). */
+    public static final String[] ARRIVALS = { "uniform", "poisson", "bursty" };
+
+    /** Names of the order size distributions, as given to setOrderSize(). */
+    public static final String[] SIZES = { "uniform", "fixed", "geometric" };
+
+    private static final Grain[] GRAINS = Grain.values();
+
+    /** Zipf exponent for the choice of trader; 0 means uniform. */
+    private double zipf = 0;
+
+    /** Cumulative Zipf weights, cdf[GRAINS.length - 1] == 1. */
+    private final double[] cdf = new double[GRAINS.length];
+
+    /** Index into ARRIVALS. */
+    private int arrivals = 0;
+
+    /** Mean burst length for bursty arrivals. */
+    private int burst = 8;
+
+    /** Longest supplier pause under uniform arrivals, in ms; twice the mean. */
+    private int interval = 100;
+
+    /** Longest brewer think time under uniform arrivals, in ms; twice the
+     * mean.
+     */
+    private int think = 500;
+
+    /** Index into SIZES. */
+    private int sizeDist = 0;
+
+    /** Parameters of the order size distribution: the range for uniform,
+     * the size (in sizeMin) for fixed, the mean (in sizeMax) for geometric.
+     */
+    private int sizeMin = 1;
+    private int sizeMax = 10;
+
+    /** Sets the skew of the choice of trader.  Grain i (in declaration
+     * order) is chosen with probability proportional to 1 / (i + 1)^s.
+     * @param s the exponent; 0 for a uniform choice.
+     */
+    public void setZipf(double s) {
+        if (s < 0) {
+            throw new IllegalArgumentException("zipf exponent " + s);
+        }
+        zipf = s;
+        double sum = 0;
+        for (int i = 0; i < cdf.length; i++) {
+            sum += Math.pow(i + 1, -s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] /= sum;
+        }
+        cdf[cdf.length - 1] = 1;
+    } // setZipf(double)
+
+    /** Sets the arrival process for both the supplier and the brewers.
+     * "uniform" draws each pause uniformly up to its limit; "poisson" draws
+     * exponential pauses with the same mean; "bursty:N" makes steps in
+     * bursts of, on average, N back-to-back steps separated by exponential
+     * pauses N times as long, so the mean rate is again the same.
+     * @param spec the process: uniform, poisson or bursty[:N].
+     */
+    public void setArrivals(String spec) {
+        String[] f = spec.split(":");
+        arrivals = indexOf(ARRIVALS, f[0], spec);
+        if (f.length > 1) {
+            if (arrivals != 2 || f.length > 2) {
+                throw new IllegalArgumentException("arrivals " + spec);
+            }
+            burst = positive(f[1], spec);
+        }
+    } // setArrivals(String)
+
+    /** Sets the longest pause between supplier deliveries under uniform
+     * arrivals (the mean is half of it).
+     * @param ms the limit in milliseconds.
+     */
+    public void setInterval(int ms) {
+        if (ms <= 0) {
+            throw new IllegalArgumentException("interval " + ms);
+        }
+        interval = ms;
+    } // setInterval(int)
+
+    /** Sets the longest brewer think time under uniform arrivals (the mean
+     * is half of it).
+     * @param ms the limit in milliseconds.
+     */
+    public void setThink(int ms) {
+        if (ms <= 0) {
+            throw new IllegalArgumentException("think " + ms);
+        }
+        think = ms;
+    } // setThink(int)
+
+    /** Sets the number of bushels of each grain in an order.
+     * @param spec uniform:MIN:MAX, fixed:N or geometric:MEAN.
+     */
+    public void setOrderSize(String spec) {
+        String[] f = spec.split(":");
+        int d = indexOf(SIZES, f[0], spec);
+        if (f.length != (d == 0 ? 3 : 2)) {
+            throw new IllegalArgumentException("order size " + spec);
+        }
+        int a = positive(f[1], spec);
+        int b = d == 0 ? positive(f[2], spec) : a;
+        if (d == 0 && a >= b) {
+            throw new IllegalArgumentException("order size " + spec);
+        }
+        sizeDist = d;
+        sizeMin = d == 2 ? 1 : a;
+        sizeMax = b;
+    } // setOrderSize(String)
+
+    /** Returns the position of name in names.
+     * @throws IllegalArgumentException if it is not there.
+     */
+    private static int indexOf(String[] names, String name, String spec) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(spec);
+    } // indexOf(String[],String,String)
+
+    /** Parses a positive integer.
+     * @throws IllegalArgumentException if s is not one.
+     */
+    private static int positive(String s, String spec) {
+        int n;
+        try {
+            n = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(spec);
+        }
+        if (n <= 0) {
+            throw new IllegalArgumentException(spec);
+        }
+        return n;
+    } // positive(String,String)
+
+    /** Chooses the trader a request goes to.
+     * @param r the caller's random stream.
+     * @return the grain of the chosen specialist.
+     */
+    public Grain grain(SplittableRandom r) {
+        if (zipf == 0) {
+            return GRAINS[r.nextInt(GRAINS.length)];
+        }
+        double u = r.nextDouble();
+        int i = 0;
+        while (u >= cdf[i]) {
+            i++;
+        }
+        return GRAINS[i];
+    } // grain(SplittableRandom)
+
+    /** Draws the number of bushels of one grain in an order.
+     * @param r the caller's random stream.
+     * @return the amount, at least 1.
+     */
+    public int orderSize(SplittableRandom r) {
+        switch (sizeDist) {
+        case 1:
+            return sizeMin;
+        case 2:
+            if (sizeMax == 1) {
+                return 1;
+            }
+            // geometric on 1, 2, ... with mean sizeMax
+            double p = 1.0 / sizeMax;
+            return 1 + (int) Math.min(sizeMax * 100L,
+                (long) (Math.log(1 - r.nextDouble()) / Math.log(1 - p)));
+        default:
+            return sizeMin + r.nextInt(sizeMax - sizeMin + 1);
+        }
+    } // orderSize(SplittableRandom)
+
+    /** Draws the supplier's pause before its next delivery.
+     * @param r the caller's random stream.
+     * @return the pause in milliseconds.
+     */
+    public long interval(SplittableRandom r) {
+        return pause(r, interval);
+    } // interval(SplittableRandom)
+
+    /** Draws a brewer's think time before its next request.
+     * @param r the caller's random stream.
+     * @return the pause in milliseconds.
+     */
+    public long think(SplittableRandom r) {
+        return pause(r, think);
+    } // think(SplittableRandom)
+
+    /** Draws a pause of mean limit / 2 from the arrival process. */
+    private long pause(SplittableRandom r, int limit) {
+        double mean = limit / 2.0;
+        switch (arrivals) {
+        case 1:
+            return Math.round(-mean * Math.log(1 - r.nextDouble()));
+        case 2:
+            if (r.nextInt(burst) != 0) {
+                return 0;
+            }
+            return Math.round(-mean * burst * Math.log(1 - r.nextDouble()));
+        default:
+            return r.nextInt(limit);
+        }
+    } // pause(SplittableRandom,int)
+
+    /** Describes this profile.
+     * @return e.g. "zipf=0 arrivals=poisson interval=100 think=500
+     *         order=uniform:1:10".
+     */
+    public String toString() {
+        String a = arrivals == 2 ? "bursty:" + burst : ARRIVALS[arrivals];
+        String o = sizeDist == 0 ? "uniform:" + sizeMin + ":" + sizeMax
+            : sizeDist == 1 ? "fixed:" + sizeMin
+            : "geometric:" + sizeMax;
+        return String.format("zipf=%s arrivals=%s interval=%d think=%d order=%s",
+            zipf, a, interval, think, o);
+    } // toString()
+} // Workload